@@ -0,0 +1,378 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Keyed aggregation at the end of a Crane topology, so a bolt sends back
+ * one line per key instead of every tuple. It is given as an operator after
+ * the actions:
+ *
+ *   count=K          tuples per key
+ *   sum=K,V          sum of field V per key, min=K,V and max=K,V alike
+ *   name=K,V         field V per key reduced by the CraneApp action name,
+ *                    which takes and returns two longs
+ *   window=SIZE      tumbling windows of SIZE ms
+ *   window=SIZE,STEP sliding windows of SIZE ms every STEP ms
+ *
+ * where K and V are comma separated fields of the tuples the last action
+ * puts out. Windows are by the time the bolt aggregates a tuple. Without
+ * one, the job is a single window that ends with the stream.
+ *
+ * Each executor of the last stage combines its tuples into its own state,
+ * without locks, and hands it in once per STEP, when it merges with the
+ * others'. A window goes out, as "start,key,value" or "key,value", once
+ * every executor has handed in all of it. What a bolt sends is its part of
+ * the aggregate. The parts for a key only need merging if the spout did
+ * not partition the tuples by that key, see CreditRouter.
+ */
+final class Aggregate {
+    private static final MethodType REDUCER = MethodType.methodType(long.class, long.class, long.class);
+
+    private final LongBinaryOperator reducer;
+    // Tuples are counted, not read for a value
+    private final boolean counting;
+    private final int keyField;
+    private final int valueField;
+    // Window and step in ms, 0 without a window
+    private final long size;
+    private final long step;
+    private final Pipeline.Sink out;
+    // Everything below is guarded by this
+    private final List<Combiner> combiners = new ArrayList<>();
+    // What the executors handed in, by the step it is for
+    private final TreeMap<Long, State> steps = new TreeMap<>();
+    // Step the next window to go out ends with
+    private long next = Long.MIN_VALUE;
+
+    private Aggregate(LongBinaryOperator reducer, boolean counting, int keyField, int valueField, long size,
+            long step, Pipeline.Sink out) {
+        this.reducer = reducer;
+        this.counting = counting;
+        this.keyField = keyField;
+        this.valueField = valueField;
+        this.size = size;
+        this.step = step;
+        this.out = out;
+    }
+
+    /*
+     * The aggregation the operators of a topology ask for, feeding out, or
+     * null if they ask for none. keyBy is the spout's and left alone.
+     */
+    static Aggregate parse(List<String> operators, Map<String, Method> actions, Pipeline.Sink out) {
+        String reducer = null;
+        String window = null;
+        for (String operator : operators) {
+            String name = operator.substring(0, operator.indexOf('='));
+            if (name.equals("keyBy"))
+                continue;
+            if (name.equals("window")) {
+                window = operator;
+                continue;
+            }
+            if (reducer != null)
+                throw new IllegalArgumentException(String.format("Crane topology aggregates twice: %s and %s",
+                        reducer, operator));
+            reducer = operator;
+        }
+        if (reducer == null) {
+            if (window != null)
+                throw new IllegalArgumentException(String.format("%s has nothing to aggregate", window));
+            return null;
+        }
+        String name = reducer.substring(0, reducer.indexOf('='));
+        long[] fields = numbers(reducer, name.equals("count") ? 1 : 2);
+        long[] times = window == null ? new long[] { 0, 0 } : numbers(window, 0);
+        if (times.length == 1)
+            times = new long[] { times[0], times[0] };
+        if (window != null && (times.length != 2 || times[1] <= 0 || times[0] % times[1] != 0))
+            throw new IllegalArgumentException(String.format(
+                    "%s must be window=SIZE or window=SIZE,STEP with SIZE a multiple of STEP", window));
+        return new Aggregate(reducer(name, actions), name.equals("count"), (int) fields[0],
+                fields.length > 1 ? (int) fields[1] : -1, times[0], times[1], out);
+    }
+
+    /*
+     * The numbers after the = of an operator, as many as expected unless that is 0
+     */
+    private static long[] numbers(String operator, int expected) {
+        String[] parts = operator.substring(operator.indexOf('=') + 1).split(",");
+        if (expected > 0 && parts.length != expected)
+            throw new IllegalArgumentException(String.format("%s needs %d fields", operator, expected));
+        long[] numbers = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                numbers[i] = Long.parseLong(parts[i]);
+            } catch (NumberFormatException e) {
+                numbers[i] = -1;
+            }
+            if (numbers[i] < 0)
+                throw new IllegalArgumentException(String.format("Bad number %s in %s", parts[i], operator));
+        }
+        return numbers;
+    }
+
+    private static LongBinaryOperator reducer(String name, Map<String, Method> actions) {
+        switch (name) {
+        case "count":
+        case "sum":
+            return Long::sum;
+        case "min":
+            return Math::min;
+        case "max":
+            return Math::max;
+        }
+        Method action = actions.get(name);
+        if (action == null)
+            throw new IllegalArgumentException(String.format("Unknown crane reducer %s", name));
+        MethodHandle handle;
+        try {
+            handle = MethodHandles.lookup().unreflect(action);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(String.format("Crane reducer %s is not accessible", name), e);
+        }
+        if (!Modifier.isStatic(action.getModifiers()) || !handle.type().equals(REDUCER))
+            throw new IllegalArgumentException(String.format(
+                    "Crane reducer %s must be static and take and return two longs", name));
+        return (a, b) -> {
+            try {
+                return (long) handle.invokeExact(a, b);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    /*
+     * State for one more executor, taken before any tuple comes in
+     */
+    synchronized Combiner combiner() {
+        Combiner combiner = new Combiner();
+        combiners.add(combiner);
+        return combiner;
+    }
+
+    private long step(long now) {
+        return step == 0 ? 0 : now / step;
+    }
+
+    /*
+     * Merges what an executor combined for one step and sends the windows
+     * every executor is now past
+     */
+    private synchronized void handIn(Combiner combiner, State state, long following) throws IOException {
+        if (state.size > 0) {
+            State merged = steps.putIfAbsent(combiner.current, state);
+            if (merged != null)
+                merged.mergeAll(state, reducer);
+        }
+        combiner.current = following;
+        long past = Long.MAX_VALUE;
+        for (Combiner c : combiners)
+            past = Math.min(past, c.current);
+        emit(past);
+    }
+
+    /*
+     * Sends every window ending before step past
+     */
+    private void emit(long past) throws IOException {
+        long width = step == 0 ? 1 : size / step;
+        while (next < past && !steps.isEmpty()) {
+            // Nothing was handed in for the windows up to the one ending with the first step
+            next = Math.max(next, steps.firstKey());
+            if (next >= past)
+                break;
+            long first = next - width + 1;
+            State window = steps.get(next);
+            if (width > 1) {
+                window = new State();
+                for (State part : steps.subMap(first, true, next, true).values())
+                    window.mergeAll(part, reducer);
+            }
+            String prefix = step == 0 ? "" : String.format("%d,", first * step);
+            synchronized (out) {
+                if (window != null)
+                    window.emit(prefix, out);
+            }
+            steps.remove(first);
+            next++;
+        }
+        if (steps.isEmpty())
+            next = Math.max(next, past);
+    }
+
+    /*
+     * Combines the tuples of one executor of the last stage, only used by
+     * that executor
+     */
+    final class Combiner implements Pipeline.Sink {
+        // Step being combined, guarded by the aggregate
+        private long current = step(System.currentTimeMillis());
+        private State state = new State();
+
+        @Override
+        public void accept(String tuple) {
+            int keyStart = start(tuple, keyField);
+            int keyEnd = end(tuple, keyStart);
+            long value = 1;
+            if (!counting) {
+                int start = start(tuple, valueField);
+                value = Long.parseLong(tuple, start, end(tuple, start), 10);
+            }
+            state.merge(tuple, keyStart, keyEnd, value, reducer);
+        }
+
+        /*
+         * How long the executor may wait for tuples before the step it is
+         * combining ends
+         */
+        long timeout() {
+            return size == 0 ? Long.MAX_VALUE : step - System.currentTimeMillis() % step;
+        }
+
+        /*
+         * Hands the step in once it is over
+         */
+        void advance() throws IOException {
+            long now = step(System.currentTimeMillis());
+            if (now != current) {
+                handIn(this, state, now);
+                state = new State();
+            }
+        }
+
+        /*
+         * Hands everything in at the end of the stream
+         */
+        void finish() throws IOException {
+            handIn(this, state, Long.MAX_VALUE);
+            state = null;
+        }
+    }
+
+    /*
+     * Where comma separated field starts in tuple, its length if tuple has
+     * fewer fields
+     */
+    static int start(String tuple, int field) {
+        int start = 0;
+        for (int i = 0; i < field; i++) {
+            int comma = tuple.indexOf(',', start);
+            if (comma < 0)
+                return tuple.length();
+            start = comma + 1;
+        }
+        return start;
+    }
+
+    static int end(String tuple, int start) {
+        int comma = tuple.indexOf(',', start);
+        return comma < 0 ? tuple.length() : comma;
+    }
+
+    /*
+     * Open addressing map from key to a long, so adding to a key that is
+     * already there neither allocates its string nor boxes its value
+     */
+    static final class State {
+        private String[] keys = new String[16];
+        private int[] hashes = new int[16];
+        private long[] values = new long[16];
+        private int size;
+
+        /*
+         * Reduces value into the key tuple has from start to end
+         */
+        void merge(String tuple, int start, int end, long value, LongBinaryOperator reducer) {
+            merge(tuple, start, end, hash(tuple, start, end), value, reducer);
+        }
+
+        /*
+         * String's hash of the key, taken from the string when that is all of it
+         */
+        private static int hash(String tuple, int start, int end) {
+            int hash = 0;
+            if (start == 0 && end == tuple.length()) {
+                hash = tuple.hashCode();
+            } else {
+                for (int i = start; i < end; i++)
+                    hash = 31 * hash + tuple.charAt(i);
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        private void merge(String tuple, int start, int end, int hash, long value, LongBinaryOperator reducer) {
+            int length = end - start;
+            int mask = keys.length - 1;
+            for (int i = hash & mask;; i = (i + 1) & mask) {
+                String key = keys[i];
+                if (key == null) {
+                    if ((size + 1) * 4 > keys.length * 3) {
+                        grow();
+                        merge(tuple, start, end, hash, value, reducer);
+                        return;
+                    }
+                    keys[i] = tuple.substring(start, end);
+                    hashes[i] = hash;
+                    values[i] = value;
+                    size++;
+                    return;
+                }
+                if (hashes[i] == hash && key.length() == length && tuple.regionMatches(start, key, 0, length)) {
+                    values[i] = reducer.applyAsLong(values[i], value);
+                    return;
+                }
+            }
+        }
+
+        private void grow() {
+            String[] oldKeys = keys;
+            int[] oldHashes = hashes;
+            long[] oldValues = values;
+            keys = new String[oldKeys.length * 2];
+            hashes = new int[keys.length];
+            values = new long[keys.length];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == null)
+                    continue;
+                int j = oldHashes[i] & mask;
+                while (keys[j] != null)
+                    j = (j + 1) & mask;
+                keys[j] = oldKeys[i];
+                hashes[j] = oldHashes[i];
+                values[j] = oldValues[i];
+            }
+        }
+
+        void mergeAll(State other, LongBinaryOperator reducer) {
+            for (int i = 0; i < other.keys.length; i++) {
+                String key = other.keys[i];
+                if (key != null)
+                    merge(key, 0, key.length(), other.hashes[i], other.values[i], reducer);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void emit(String prefix, Pipeline.Sink out) throws IOException {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null)
+                    out.accept(prefix + keys[i] + ',' + values[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Anti-entropy between co-replicas. For every other member a node keeps a
+ * MerkleTree over the files the two of them are both replicas of, one entry
+ * per file: the stamp and digest of its newest version, or its tombstone.
+ * Every PERIOD it compares root hashes with each member and descends only
+ * into subtrees that differ, so a round between replicas in sync is one
+ * small call and the entries exchanged grow with the divergence, not with
+ * the number of files. Each side pushes the versions the other lacks
+ * through ReplicaRepair and applies the deletes it missed; what the other
+ * side is ahead on, it pushes in its own round.
+ */
+class AntiEntropy {
+    static final long PERIOD = Long.getLong("sdfs.antiEntropyPeriod", 30000);
+    // Tombstones older than this are forgotten, a replica that missed a delete for longer brings the file back
+    static final long TOMBSTONE_TTL = Long.getLong("sdfs.tombstoneTtl", 60L * 60 * 1000);
+    static final String HASHES = "anti-entropy-hashes";
+    static final String LEAVES = "anti-entropy-leaves";
+    // Nodes asked for per call, keeps requests and replies well under a frame
+    static final int BATCH = 1024;
+
+    // Trees built for each peer, reused until membership or the index changes
+    private static final ConcurrentHashMap<String, CachedTree> trees = new ConcurrentHashMap<>();
+
+    /*
+     * The other side of a comparison
+     */
+    interface Remote {
+        String call(String command) throws IOException;
+    }
+
+    private static final class CachedTree {
+        final long membership;
+        final long changes;
+        final MerkleTree tree;
+
+        CachedTree(long membership, long changes, MerkleTree tree) {
+            this.membership = membership;
+            this.changes = changes;
+            this.tree = tree;
+        }
+    }
+
+    static void start() {
+        Transport.register(HASHES, (peer, args, body) -> serveHashes(treeFor(peer), args));
+        Transport.register(LEAVES, (peer, args, body) -> serveLeaves(treeFor(peer), args));
+        if (PERIOD <= 0)
+            return;
+        Thread thread = new Thread(AntiEntropy::run, "sdfs-anti-entropy");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void run() {
+        while (true) {
+            try {
+                Thread.sleep(PERIOD);
+            } catch (InterruptedException e) {
+                return;
+            }
+            VersionIndex.purgeTombstones(System.currentTimeMillis() - TOMBSTONE_TTL);
+            Membership view = Server.group;
+            trees.keySet().retainAll(view.asList());
+            for (String peer : view) {
+                if (peer.equals(Server.ip))
+                    continue;
+                try {
+                    sync(peer);
+                } catch (IOException | RuntimeException e) {
+                    Server.writeToLog(String.format("Anti-entropy with %s failed: %s", peer, e.getMessage()));
+                }
+            }
+        }
+    }
+
+    /*
+     * Tree over the files this node and peer both replicate
+     */
+    static MerkleTree treeFor(String peer) {
+        Membership view = Server.group;
+        long changes = VersionIndex.changes();
+        CachedTree cached = trees.get(peer);
+        if (cached != null && cached.membership == view.getVersion() && cached.changes == changes)
+            return cached.tree;
+        HashRing ring = FileHandler.getRing(view);
+        Set<String> names = new HashSet<>(VersionIndex.getFilenames());
+        names.addAll(VersionIndex.getTombstones());
+        Map<String, String> entries = new HashMap<>();
+        for (String name : names) {
+            List<String> replicas = ring.getReplicas(name, FileHandler.NUM_REPLICAS);
+            if (!replicas.contains(Server.ip) || !replicas.contains(peer))
+                continue;
+            String entry = entry(name);
+            if (entry != null)
+                entries.put(name, entry);
+        }
+        MerkleTree tree = new MerkleTree(entries);
+        trees.put(peer, new CachedTree(view.getVersion(), changes, tree));
+        return tree;
+    }
+
+    /*
+     * "<stamp> <digest prefix>" of the newest version, "<stamp> -" for a
+     * tombstone, null if the file is gone without one
+     */
+    private static String entry(String name) {
+        Version latest = VersionIndex.get(name).latest();
+        if (latest != null)
+            return String.format("%d %s", latest.stamp, latest.digest.substring(0, 16));
+        long tombstone = VersionIndex.getTombstone(name);
+        return tombstone < 0 ? null : String.format("%d -", tombstone);
+    }
+
+    /*
+     * One round with peer
+     */
+    static void sync(String peer) throws IOException {
+        MerkleTree mine = treeFor(peer);
+        int[] exchanged = new int[1];
+        Remote remote = command -> {
+            String reply = Transport.call(peer, command);
+            exchanged[0] += command.length() + reply.length();
+            return reply;
+        };
+        List<Integer> differing = differingLeaves(mine, remote);
+        if (differing.isEmpty()) {
+            if (Server.DEBUG)
+                Server.debug(String.format("Anti-entropy with %s: in sync, %d bytes exchanged", peer, exchanged[0]));
+            return;
+        }
+        Map<String, String> theirs = fetchLeaves(differing, remote);
+        Map<String, String> ours = mine.entries(differing);
+        int pushed = 0;
+        int deleted = 0;
+        int tombstones = 0;
+        Set<String> names = new HashSet<>(ours.keySet());
+        names.addAll(theirs.keySet());
+        for (String name : names) {
+            String mineEntry = ours.get(name);
+            String theirEntry = theirs.get(name);
+            if (mineEntry != null && mineEntry.equals(theirEntry))
+                continue;
+            long myStamp = mineEntry == null ? -1 : stamp(mineEntry);
+            long theirStamp = theirEntry == null ? -1 : stamp(theirEntry);
+            /*
+             * Every replica stamps a client's delete itself, so their tombstones
+             * differ. Both sides keep the newest, as they do with a missing one.
+             * Without an entry here the file is only outside our replicas in our
+             * view of the ring, which can lag the peer's, so versions of it may
+             * still be stored here and the tombstone must be newer than those too.
+             */
+            if (theirEntry != null && isTombstone(theirEntry) && (mineEntry == null || isTombstone(mineEntry))) {
+                Version latest = VersionIndex.get(name).latest();
+                if (theirStamp > myStamp && (latest == null || theirStamp > latest.stamp)) {
+                    FileHandler.deleteFile(name, theirStamp);
+                    tombstones++;
+                }
+                continue;
+            }
+            if (mineEntry == null)
+                continue;
+            if (!isTombstone(mineEntry) && myStamp > theirStamp) {
+                if (ReplicaRepair.transfer(name, peer))
+                    pushed++;
+            } else if (theirEntry != null && isTombstone(theirEntry) && !isTombstone(mineEntry)
+                    && theirStamp > myStamp) {
+                FileHandler.deleteFile(name, theirStamp);
+                deleted++;
+            } else if (myStamp == theirStamp && !isTombstone(mineEntry) && !isTombstone(theirEntry)) {
+                Server.writeToLog(AsyncLogger.Level.WARN, String.format(
+                        "%s has different contents with the same stamp here and on %s", name, peer));
+            }
+        }
+        Server.writeToLog(String.format("Anti-entropy with %s: %d differing leaves, %d entries compared, "
+                + "pushing %d, deleted %d, took %d newer tombstones, %d bytes exchanged", peer, differing.size(),
+                names.size(), pushed, deleted, tombstones, exchanged[0]));
+    }
+
+    private static long stamp(String entry) {
+        return Long.parseLong(entry.substring(0, entry.indexOf(' ')));
+    }
+
+    private static boolean isTombstone(String entry) {
+        return entry.endsWith(" -");
+    }
+
+    /*
+     * Walks down from the root, asking only for the children of nodes whose
+     * hashes differ. Returns the differing leaves.
+     */
+    static List<Integer> differingLeaves(MerkleTree mine, Remote remote) throws IOException {
+        List<Integer> nodes = Arrays.asList(0);
+        for (int level = 0; ; level++) {
+            List<Integer> differing = new ArrayList<>();
+            for (int from = 0; from < nodes.size(); from += BATCH) {
+                List<Integer> batch = nodes.subList(from, Math.min(nodes.size(), from + BATCH));
+                String[] hashes = remote.call(String.format("%s %d %s", HASHES, level, join(batch))).split(" ");
+                for (int i = 0; i < batch.size(); i++) {
+                    if (mine.hash(level, batch.get(i)) != Long.parseUnsignedLong(hashes[i], 16))
+                        differing.add(batch.get(i));
+                }
+            }
+            if (differing.isEmpty() || level == MerkleTree.DEPTH)
+                return differing;
+            nodes = new ArrayList<>();
+            for (int node : differing) {
+                for (int child = 0; child < MerkleTree.FANOUT; child++)
+                    nodes.add(node * MerkleTree.FANOUT + child);
+            }
+        }
+    }
+
+    /*
+     * The entries of the given leaves on the other side, in as many calls as
+     * it takes to keep each reply under a frame
+     */
+    static Map<String, String> fetchLeaves(List<Integer> leaves, Remote remote) throws IOException {
+        Map<String, String> entries = new HashMap<>();
+        int from = 0;
+        while (from < leaves.size()) {
+            List<Integer> batch = leaves.subList(from, Math.min(leaves.size(), from + BATCH));
+            String[] lines = remote.call(String.format("%s %s", LEAVES, join(batch))).split("\n");
+            int answered = Integer.parseInt(lines[0]);
+            if (answered == 0)
+                throw new IOException(String.format("Leaf %d does not fit in a reply", batch.get(0)));
+            for (int i = 1; i < lines.length; i++) {
+                int space = lines[i].indexOf(' ');
+                entries.put(lines[i].substring(0, space), lines[i].substring(space + 1));
+            }
+            from += answered;
+        }
+        return entries;
+    }
+
+    /*
+     * "anti-entropy-hashes <level> <node,node,...>": the hashes of those
+     * nodes, in hex, space separated
+     */
+    static String serveHashes(MerkleTree tree, String[] args) {
+        int level = Integer.parseInt(args[1]);
+        StringBuilder sb = new StringBuilder();
+        for (String node : args[2].split(",")) {
+            if (sb.length() > 0)
+                sb.append(' ');
+            sb.append(Long.toHexString(tree.hash(level, Integer.parseInt(node))));
+        }
+        return sb.toString();
+    }
+
+    /*
+     * "anti-entropy-leaves <leaf,leaf,...>": how many of the leaves are
+     * answered, then a "<name> <entry>" line per entry in them. Stops at
+     * the first leaf that would overflow the reply.
+     */
+    static String serveLeaves(MerkleTree tree, String[] args) {
+        String[] leaves = args[1].split(",");
+        StringBuilder sb = new StringBuilder();
+        int answered = 0;
+        for (String leaf : leaves) {
+            StringBuilder lines = new StringBuilder();
+            for (Map.Entry<String, String> entry : tree.entries(Integer.parseInt(leaf)).entrySet())
+                lines.append('\n').append(entry.getKey()).append(' ').append(entry.getValue());
+            if (sb.length() + lines.length() > Transport.MAX_DATA)
+                break;
+            sb.append(lines);
+            answered++;
+        }
+        return answered + sb.toString();
+    }
+
+    private static String join(List<Integer> nodes) {
+        StringBuilder sb = new StringBuilder();
+        for (int node : nodes) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(node);
+        }
+        return sb.toString();
+    }
+}
+
+/**
+ * Fixed-shape Merkle tree over named entries: DEPTH levels of FANOUT
+ * children below the root. Entries land in a leaf by the hash of their
+ * name; a leaf's hash is the XOR of its entries' hashes, and every other
+ * node hashes its children in order. Two trees over the same entries
+ * have the same root, and the subtrees that differ lead to the leaves
+ * holding the differences.
+ */
+final class MerkleTree {
+    static final int FANOUT = 16;
+    static final int DEPTH = 3;
+    static final int LEAVES = 1 << (4 * DEPTH);
+
+    // levels[0] is the root, levels[DEPTH] the leaves
+    private final long[][] levels = new long[DEPTH + 1][];
+    private final Map<Integer, Map<String, String>> leaves = new HashMap<>();
+
+    MerkleTree(Map<String, String> entries) {
+        for (int level = 0; level <= DEPTH; level++)
+            levels[level] = new long[1 << (4 * level)];
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            int leaf = leafOf(entry.getKey());
+            levels[DEPTH][leaf] ^= HashRing.hash(entry.getKey() + " " + entry.getValue());
+            leaves.computeIfAbsent(leaf, k -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+        }
+        for (int level = DEPTH - 1; level >= 0; level--) {
+            for (int node = 0; node < levels[level].length; node++) {
+                long h = level;
+                for (int child = 0; child < FANOUT; child++) {
+                    h = (h ^ levels[level + 1][node * FANOUT + child]) * 0x9e3779b97f4a7c15L;
+                    h ^= h >>> 29;
+                }
+                levels[level][node] = h;
+            }
+        }
+    }
+
+    static int leafOf(String name) {
+        return (int) (HashRing.hash(name) >>> (64 - 4 * DEPTH));
+    }
+
+    long hash(int level, int node) {
+        return levels[level][node];
+    }
+
+    Map<String, String> entries(int leaf) {
+        return leaves.getOrDefault(leaf, Map.of());
+    }
+
+    Map<String, String> entries(List<Integer> leafList) {
+        Map<String, String> entries = new HashMap<>();
+        for (int leaf : leafList)
+            entries.putAll(entries(leaf));
+        return entries;
+    }
+}
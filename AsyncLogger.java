@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log pipeline behind Server.writeToLog. Any thread can append
+ * to a bounded lock-free ring buffer; a single writer thread drains it,
+ * formats the timestamps, and writes the lines to the log file and stdout
+ * in batches. A batch is flushed once it reaches FLUSH_BYTES, or after
+ * FLUSH_INTERVAL_MS, instead of once per message. As it writes it keeps
+ * the LogIndex of the file up to date for grep.
+ */
+class AsyncLogger {
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    static final int CAPACITY = 1 << 16;
+    static final int FLUSH_BYTES = 64 * 1024;
+    static final long FLUSH_INTERVAL_MS = 50;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static final class Entry {
+        final long millis;
+        final Level level;
+        final String msg;
+
+        Entry(long millis, Level level, String msg) {
+            this.millis = millis;
+            this.level = level;
+            this.msg = msg;
+        }
+    }
+
+    /*
+     * Bounded multi-producer ring buffer. Each slot carries a sequence number
+     * telling producers whether it is free for their ticket and the consumer
+     * whether it has been published.
+     */
+    private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private long head; // only touched by the writer thread
+
+    private final Thread writerThread;
+    private volatile boolean closing;
+    private volatile FileChannel file;
+    private volatile LogIndex index;
+    private final StringBuilder batch = new StringBuilder(FLUSH_BYTES * 2);
+    // Where in batch the entries to checkpoint start, and their timestamps
+    private final ArrayList<Integer> checkpoints = new ArrayList<>();
+    private final ArrayList<String> checkpointStamps = new ArrayList<>();
+    private long entriesWritten;
+    private long lastFlush = System.currentTimeMillis();
+
+    AsyncLogger() {
+        for (int i = 0; i < CAPACITY; i++)
+            sequences.set(i, i);
+        writerThread = new Thread(this::drain, "async-logger");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        // Quit exits through System.exit, so drain what is left on the way out
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    void setFile(String filename) throws IOException {
+        Path path = Paths.get(filename);
+        index = new LogIndex(path);
+        file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /*
+     * Index of the log file, or null if the logger only writes to stdout
+     */
+    LogIndex getIndex() {
+        return index;
+    }
+
+    /*
+     * Number of times a producer found the ring full and had to wait
+     */
+    long getStalls() {
+        return stalls.get();
+    }
+
+    void log(Level level, String msg) {
+        Entry entry = new Entry(System.currentTimeMillis(), level, msg);
+        while (!offer(entry)) {
+            stalls.incrementAndGet();
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+    }
+
+    private boolean offer(Entry entry) {
+        long pos = tail.get();
+        while (true) {
+            int idx = (int) (pos & (CAPACITY - 1));
+            long diff = sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    entries.set(idx, entry);
+                    sequences.set(idx, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false; // Full
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    private Entry poll() {
+        int idx = (int) (head & (CAPACITY - 1));
+        if (sequences.get(idx) != head + 1)
+            return null;
+        Entry entry = entries.get(idx);
+        entries.set(idx, null);
+        sequences.set(idx, head + CAPACITY);
+        head++;
+        return entry;
+    }
+
+    private void drain() {
+        while (true) {
+            Entry entry = poll();
+            if (entry == null) {
+                if (closing) {
+                    flush();
+                    return;
+                }
+                if (batch.length() > 0 && System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL_MS)
+                    flush();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            append(entry);
+            if (batch.length() >= FLUSH_BYTES)
+                flush();
+        }
+    }
+
+    private void close() {
+        closing = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void append(Entry entry) {
+        String stamp = Server.formatDate(entry.millis);
+        if (entriesWritten++ % LogIndex.INDEX_INTERVAL == 0) {
+            checkpoints.add(batch.length());
+            checkpointStamps.add(stamp);
+        }
+        batch.append(stamp).append(": ");
+        if (entry.level != Level.INFO)
+            batch.append(entry.level.name()).append(' ');
+        batch.append(entry.msg).append('\n');
+    }
+
+    private void flush() {
+        String lines = batch.toString();
+        batch.setLength(0);
+        lastFlush = System.currentTimeMillis();
+        System.out.print(lines);
+        FileChannel out = file;
+        LogIndex idx = index;
+        try {
+            if (out == null)
+                return;
+            // Write up to each checkpoint separately so its byte offset is known
+            int written = 0;
+            for (int i = 0; i < checkpoints.size(); i++) {
+                int mark = checkpoints.get(i);
+                write(out, lines.substring(written, mark));
+                written = mark;
+                idx.checkpoint(out.position(), checkpointStamps.get(i));
+            }
+            write(out, lines.substring(written));
+            idx.setLength(out.position());
+        } catch (IOException e) {
+            System.err.printf("Could not write log: %s%n", e.getMessage());
+        } finally {
+            checkpoints.clear();
+            checkpointStamps.clear();
+        }
+    }
+
+    private static void write(FileChannel out, String lines) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining())
+            out.write(bytes);
+    }
+}
@@ -0,0 +1,405 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed chunk storage behind SDFS versions. A put is split into
+ * content-defined chunks with a gear rolling hash, so an edit only changes
+ * the chunks around it, and each chunk is stored once under its SHA-256 in
+ * CHUNK_DIR no matter how many versions or files contain it. A version on
+ * disk is a Manifest listing its chunks.
+ *
+ * Every chunk is reference counted by the manifests that list it, staged
+ * ones included, and deleted when the last of them goes away. The counts
+ * live in memory and are rebuilt from the manifests by load() at startup.
+ *
+ * Manifests also carry the CRC32C of every chunk, computed while the chunk
+ * is cut. Whole files go over the wire as their length, their bytes and the
+ * CRC32C of the bytes, which send derives from the chunk checksums without
+ * reading the data, so the receiver checks what was on disk end to end.
+ */
+class ChunkStore {
+    static final String CHUNK_DIR = "sdfs-chunks";
+    static final int MIN_CHUNK = 16 * 1024;
+    static final int MAX_CHUNK = 256 * 1024;
+    // 16 bits of the rolling hash must be zero for a cut, so chunks average MIN_CHUNK + 64 KB
+    private static final long CUT_MASK = 0xffffL << 48;
+    // Bytes of history the rolling hash covers, it is primed this long before MIN_CHUNK
+    private static final int WINDOW = 64;
+    private static final long[] GEAR = new long[256];
+    private static final int STRIPES = 64;
+    private static final Object[] locks = new Object[STRIPES];
+    private static final HashMap<String, Integer> refs = new HashMap<>();
+    private static final AtomicLong temporaries = new AtomicLong();
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    static {
+        long seed = 0x5dfe_c0de_1234_5678L;
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9e3779b97f4a7c15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+        for (int i = 0; i < STRIPES; i++)
+            locks[i] = new Object();
+    }
+
+    static Path getChunkDirectory() {
+        return Paths.get(System.getProperty(FileHandler.USER_DIR), CHUNK_DIR);
+    }
+
+    /*
+     * Unique path beside the chunks for a file about to be moved into place
+     */
+    static Path newTemporaryPath() throws IOException {
+        Path dir = getChunkDirectory().resolve("tmp");
+        if (!Files.isDirectory(dir))
+            Files.createDirectories(dir);
+        return dir.resolve(String.format("%d-%d", ProcessHandle.current().pid(), temporaries.incrementAndGet()));
+    }
+
+    static Path getChunkPath(String hash) {
+        return getChunkDirectory().resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static Object lockFor(String hash) {
+        return locks[Integer.parseInt(hash.substring(0, 2), 16) % STRIPES];
+    }
+
+    /*
+     * Rebuilds the reference counts from every stored and staged manifest and
+     * deletes chunks nothing refers to any more, along with temporary files
+     * and deleted files a crash left behind. Runs after VersionIndex.load().
+     */
+    static void load() throws IOException {
+        Path tmp = getChunkDirectory().resolve("tmp");
+        if (Files.isDirectory(tmp)) {
+            try (Stream<Path> leftovers = Files.walk(tmp)) {
+                for (Path path : (Iterable<Path>) leftovers.sorted(Comparator.reverseOrder())::iterator)
+                    Files.delete(path);
+            }
+        }
+
+        HashMap<String, Integer> counted = new HashMap<>();
+        List<Path> manifests = new ArrayList<>();
+        for (String filename : VersionIndex.getFilenames()) {
+            for (Version version : VersionIndex.get(filename).versions)
+                manifests.add(VersionIndex.getManifestPath(filename, version));
+        }
+        Path staging = Paths.get(System.getProperty(FileHandler.USER_DIR), FileHandler.STAGING_DIR);
+        if (Files.isDirectory(staging)) {
+            try (Stream<Path> staged = Files.list(staging)) {
+                staged.forEach(manifests::add);
+            }
+        }
+        int upgraded = 0;
+        for (Path path : manifests) {
+            try {
+                Manifest manifest = Manifest.read(path);
+                for (String hash : manifest.hashes)
+                    counted.merge(hash, 1, Integer::sum);
+                // Manifests from before checksums get them from their chunks once
+                if (!manifest.hasChecksums()) {
+                    manifest.withChecksums().write(path);
+                    upgraded++;
+                }
+            } catch (IOException e) {
+                Server.writeToLog(String.format("Skipping unreadable manifest %s: %s", path, e.getMessage()));
+            }
+        }
+
+        int orphans = 0;
+        if (Files.isDirectory(getChunkDirectory())) {
+            try (Stream<Path> chunks = Files.walk(getChunkDirectory(), 2)) {
+                for (Path chunk : (Iterable<Path>) chunks.filter(Files::isRegularFile)::iterator) {
+                    if (!counted.containsKey(chunk.getFileName().toString())) {
+                        Files.deleteIfExists(chunk);
+                        orphans++;
+                    }
+                }
+            }
+        }
+        synchronized (refs) {
+            refs.clear();
+            refs.putAll(counted);
+        }
+        Server.writeToLog(String.format("Loaded %d chunks from %d manifests, removed %d orphans, checksummed %d",
+                counted.size(), manifests.size(), orphans, upgraded));
+    }
+
+    /*
+     * Whether a version still refers to the chunk
+     */
+    static boolean isReferenced(String hash) {
+        synchronized (refs) {
+            return refs.containsKey(hash);
+        }
+    }
+
+    /*
+     * Takes a reference to a chunk only if its file is here, so a delete
+     * can not collect it before the manifest that needs it is written
+     */
+    static boolean retainIfPresent(String hash) {
+        synchronized (lockFor(hash)) {
+            if (!Files.exists(getChunkPath(hash)))
+                return false;
+            synchronized (refs) {
+                refs.merge(hash, 1, Integer::sum);
+            }
+            return true;
+        }
+    }
+
+    /*
+     * Takes a reference to a chunk for a manifest being written. The first
+     * reference stores data; with data == null the chunk must already exist.
+     */
+    static void retain(String hash, byte[] data, int off, int len) throws IOException {
+        synchronized (lockFor(hash)) {
+            int count;
+            synchronized (refs) {
+                count = refs.merge(hash, 1, Integer::sum);
+            }
+            if (count > 1)
+                return;
+            Path path = getChunkPath(hash);
+            try {
+                if (Files.exists(path))
+                    return;
+                if (data == null)
+                    throw new FileNotFoundException(String.format("Missing chunk %s", hash));
+                /*
+                 * Written in place: anyone else retaining this chunk waits on
+                 * the lock until it is complete, and a chunk cut short by a
+                 * crash is referenced by no manifest, so load() removes it
+                 */
+                if (!Files.isDirectory(path.getParent()))
+                    Files.createDirectories(path.getParent());
+                try (OutputStream out = Files.newOutputStream(path)) {
+                    out.write(data, off, len);
+                }
+            } catch (IOException e) {
+                synchronized (refs) {
+                    refs.remove(hash);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /*
+     * Drops one reference per entry of the manifest and deletes chunks that
+     * are no longer referenced
+     */
+    static void release(Manifest manifest) throws IOException {
+        for (String hash : manifest.hashes) {
+            synchronized (lockFor(hash)) {
+                boolean unused;
+                synchronized (refs) {
+                    Integer count = refs.get(hash);
+                    unused = count == null || count <= 1;
+                    if (unused)
+                        refs.remove(hash);
+                    else
+                        refs.put(hash, count - 1);
+                }
+                if (unused)
+                    Files.deleteIfExists(getChunkPath(hash));
+            }
+        }
+    }
+
+    /*
+     * Reads a chunk and checks it against its length and checksum. Returns
+     * null if it is missing or corrupt.
+     */
+    static byte[] readVerified(String hash, int length, int crc) throws IOException {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(getChunkPath(hash));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return data.length == length && Crc32c.of(data, 0, length) == crc ? data : null;
+    }
+
+    /*
+     * Replaces a corrupt or missing chunk with good bytes from a peer, in
+     * one step so readers see either the old file or the repaired one. A
+     * chunk released meanwhile is left alone.
+     */
+    static boolean repair(String hash, byte[] data) throws IOException {
+        if (!sha256(data, 0, data.length).equals(hash))
+            throw new IOException(String.format("Repair data for chunk %s does not match its hash", hash));
+        synchronized (lockFor(hash)) {
+            synchronized (refs) {
+                if (!refs.containsKey(hash))
+                    return false;
+            }
+            Path path = getChunkPath(hash);
+            Path tmp = newTemporaryPath();
+            Files.write(tmp, data);
+            Files.createDirectories(path.getParent());
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        }
+    }
+
+    /*
+     * Bytes of chunk data on disk
+     */
+    static long diskUsage() throws IOException {
+        if (!Files.isDirectory(getChunkDirectory()))
+            return 0;
+        try (Stream<Path> chunks = Files.walk(getChunkDirectory(), 2)) {
+            long total = 0;
+            for (Path chunk : (Iterable<Path>) chunks.filter(Files::isRegularFile)::iterator)
+                total += Files.size(chunk);
+            return total;
+        }
+    }
+
+    static void transferTo(Manifest manifest, WritableByteChannel out) throws IOException {
+        for (String hash : manifest.hashes) {
+            try (FileChannel in = FileChannel.open(getChunkPath(hash))) {
+                long position = 0;
+                long size = in.size();
+                while (position < size)
+                    position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    /*
+     * Sends a version the same way FileHandler.sendFile sends a file: its
+     * length, its bytes reassembled from the chunks, then their CRC32C
+     */
+    static void send(Manifest manifest, Socket socket) throws IOException {
+        if (manifest.size <= 0)
+            throw new IOException("Tried to send empty file");
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeLong(manifest.size);
+        out.flush();
+        SocketChannel channel = socket.getChannel();
+        if (channel != null) {
+            transferTo(manifest, channel);
+        } else {
+            for (String hash : manifest.hashes)
+                Files.copy(getChunkPath(hash), out);
+        }
+        out.writeInt(manifest.checksum());
+        out.flush();
+    }
+
+    static String sha256(byte[] data, int off, int len) {
+        MessageDigest digest = digests.get();
+        digest.update(data, off, len);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /*
+     * Splits a stream of bytes into chunks as it arrives and stores them.
+     * finish writes the manifest; abort gives back the references taken.
+     */
+    static final class Writer {
+        // Room for two chunks, so the unchunked tail is only moved back once per MAX_CHUNK bytes
+        private final byte[] buffer = new byte[2 * MAX_CHUNK];
+        private int start;
+        private int length;
+        private int scanned;
+        private long hash;
+        private long size;
+        private final List<String> hashes = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+        private final List<Integer> crcs = new ArrayList<>();
+
+        void write(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                if (length == buffer.length) {
+                    System.arraycopy(buffer, start, buffer, 0, length - start);
+                    scanned -= start;
+                    length -= start;
+                    start = 0;
+                }
+                int count = Math.min(src.remaining(), buffer.length - length);
+                src.get(buffer, length, count);
+                length += count;
+                size += count;
+                cut();
+            }
+        }
+
+        private void cut() throws IOException {
+            while (true) {
+                int end = -1;
+                // Nothing before MIN_CHUNK can end a chunk, only the window before it needs hashing
+                scanned = Math.max(scanned, Math.min(length, start + MIN_CHUNK - WINDOW));
+                int prime = Math.min(length, start + MIN_CHUNK - 1);
+                for (; scanned < prime; scanned++)
+                    hash = (hash << 1) + GEAR[buffer[scanned] & 0xff];
+                int limit = Math.min(length, start + MAX_CHUNK);
+                for (; scanned < limit; scanned++) {
+                    hash = (hash << 1) + GEAR[buffer[scanned] & 0xff];
+                    if ((hash & CUT_MASK) == 0) {
+                        end = scanned + 1;
+                        break;
+                    }
+                }
+                if (end == -1) {
+                    if (length - start < MAX_CHUNK)
+                        return;
+                    end = start + MAX_CHUNK;
+                }
+                emit(end);
+            }
+        }
+
+        private void emit(int end) throws IOException {
+            String chunk = sha256(buffer, start, end - start);
+            retain(chunk, buffer, start, end - start);
+            hashes.add(chunk);
+            lengths.add(end - start);
+            crcs.add(Crc32c.of(buffer, start, end - start));
+            start = end;
+            scanned = end;
+            hash = 0;
+        }
+
+        Manifest finish(Path manifestPath) throws IOException {
+            if (length > start)
+                emit(length);
+            Manifest manifest = new Manifest(size, hashes, lengths, crcs);
+            manifest.write(manifestPath);
+            return manifest;
+        }
+
+        void abort() throws IOException {
+            release(new Manifest(size, hashes, lengths, crcs));
+            hashes.clear();
+            lengths.clear();
+            crcs.clear();
+        }
+    }
+}
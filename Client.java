@@ -1,7 +1,18 @@
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32C;
 
 class clientFileHandler {
     static final String DIRECTORY = "user.dir";
@@ -87,13 +98,19 @@ public class Client {
     private static HashSet<String> commands = new HashSet<>(Arrays.asList(
     ));
     private static String lastInput;
+    // Client side latency of every command, printed by "latency"
+    static final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    static void recordLatency(String name, long nanos) {
+        latencies.computeIfAbsent(name, k -> new LatencyHistogram()).record(nanos);
+    }
 
     // Checks the input string against our dictionary of existing commands
     public static String checkCommand(String cmd) {
         String ret = "INVALID";
         String[] components = cmd.split(" ");
         if (components.length == 1) {
-            if (components[0].equals("store")) {
+            if (components[0].equals("store") || components[0].equals("latency")) {
                 ret = components[0];
             }
         } else if (components.length == 2) {
@@ -116,12 +133,30 @@ public class Client {
         }
         System.out.printf("================= %s =================\n", cmd);
         long startTime = System.currentTimeMillis();
+        long start = System.nanoTime();
         if (!commands.contains(cmds[0]) && checkCommand(cmd).equals("INVALID")) {
             System.out.printf("Type a valid command from %s%n", commands.toString());
             return;
         }
         if (cmd.equals("store")) {
             FileHandler.printFiles();
+        } else if (cmd.equals("latency")) {
+            for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet())
+                System.out.println(entry.getValue().summary(entry.getKey()));
+            return;
+        } else if (cmds[0].equals("get")) {
+            // Only the replicas are asked, and only until a read quorum has answered
+            System.out.println(QuorumRead.get(cmds[1], cmds[2]));
+        } else if (cmds[0].equals("put")) {
+            // Upload once to the head of the replica chain, it forwards to the others
+            String head = findReplicaHead(cmds[2]);
+            if (head == null) {
+                System.out.println("Could not find the replicas for " + cmds[2]);
+            } else {
+                queryThread thread = new queryThread(head, Server.SERVER_PORT, cmd);
+                thread.start();
+                thread.join();
+            }
         } else {
             ArrayList<queryThread> threads = new ArrayList<>();
             queryThread.read_quorum = false;
@@ -133,11 +168,38 @@ public class Client {
             for (queryThread thread : threads)
                 thread.join();
         }
+        recordLatency(cmds[0], System.nanoTime() - start);
         long endTime = System.currentTimeMillis();
         System.out.printf("================= %s %dms =================\n", cmd, endTime - startTime);
         lastInput = new String(cmd);
     }
 
+    // Asks the first reachable server for the replica chain of a file
+    private static String findReplicaHead(String sdfsFilename) {
+        List<String> replicas = findReplicas(sdfsFilename);
+        return replicas.isEmpty() ? null : replicas.get(0);
+    }
+
+    static List<String> findReplicas(String sdfsFilename) {
+        for (String server : serverList) {
+            try (Socket socket = FileHandler.openSocket(server, Server.SERVER_PORT)) {
+                new DataOutputStream(socket.getOutputStream()).writeUTF(String.format("replicas %s\n", sdfsFilename));
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                List<String> replicas = new ArrayList<>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty())
+                        replicas.add(line.trim());
+                }
+                if (!replicas.isEmpty())
+                    return replicas;
+            } catch (IOException e) {
+                // Try the next server
+            }
+        }
+        return new ArrayList<>();
+    }
+
     public static void main(String[] args) throws IOException, InterruptedException {
         @SuppressWarnings("resource")
         Scanner userInput = new Scanner(System.in);
@@ -180,8 +242,8 @@ class queryThread extends Thread implements Runnable {
     public void run() {
         StringBuilder sb = new StringBuilder();
         try {
-            socket = new Socket(ip, port);
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            socket = FileHandler.openSocket(ip, port);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
             DataInputStream in = new DataInputStream(socket.getInputStream());
             writer = new DataOutputStream(socket.getOutputStream());
             sb.append(String.format("%s\n", ip));
@@ -192,7 +254,8 @@ class queryThread extends Thread implements Runnable {
             // Handle extra logic needed by commands
             switch (components[0]) {
                 case "put":
-                    FileHandler.sendFile(components[1], socket, 0);
+                    // The local file, with the length and CRC32C the head checks it against
+                    FileHandler.sendFile(new File(clientFileHandler.getFilePath(components[1])), socket);
                     break;
                 case "get":
                     synchronized (System.out) {
@@ -236,3 +299,320 @@ class queryThread extends Thread implements Runnable {
 
     }
 }
+
+/**
+ * A get that asks every replica of the file for the stamp of its newest
+ * version, waits for READ_QUORUM answers and fetches the file from the
+ * replicas with the newest stamp. Replicas that have not answered by then are
+ * cut off, so a slow or dead replica costs nothing once the quorum is in.
+ *
+ * The file is fetched as RANGE_SIZE ranges, pulled in parallel by one worker
+ * per replica holding the newest version, so a download is not capped by a
+ * single replica. A range cut short by a failing replica is resumed from
+ * where it stopped by one of the others.
+ */
+class QuorumRead {
+    static final int TIMEOUT = Integer.getInteger("sdfs.readTimeout", 5000);
+    static final long RANGE_SIZE = Long.getLong("sdfs.rangeSize", 8L * 1024 * 1024);
+    private static final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "quorum-read");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /*
+     * A replica's newest version, stamp -1 if it does not have the file
+     */
+    private static final class Stat {
+        final String ip;
+        final long stamp;
+        final long size;
+        final String digest;
+        // CRC32C of the whole version, null from servers without checksums
+        final Integer checksum;
+
+        Stat(String ip, long stamp, long size, String digest, Integer checksum) {
+            this.ip = ip;
+            this.stamp = stamp;
+            this.size = size;
+            this.digest = digest;
+            this.checksum = checksum;
+        }
+    }
+
+    /*
+     * Sockets of the stat requests still in flight, closing them cancels the
+     * requests. A request that connects after cancel closes itself.
+     */
+    private static final class Pending {
+        private final List<Socket> sockets = new ArrayList<>();
+        private boolean cancelled;
+
+        synchronized boolean add(Socket socket) throws IOException {
+            if (cancelled)
+                socket.close();
+            else
+                sockets.add(socket);
+            return !cancelled;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        }
+    }
+
+    static String get(String sdfsName, String localName) throws InterruptedException {
+        List<String> replicas = Client.findReplicas(sdfsName);
+        if (replicas.isEmpty())
+            return String.format("Could not find the replicas for %s", sdfsName);
+        int quorum = Math.min(FileHandler.READ_QUORUM, replicas.size());
+
+        Pending pending = new Pending();
+        CompletionService<Stat> stats = new ExecutorCompletionService<>(pool);
+        for (String ip : replicas)
+            stats.submit(() -> stat(ip, sdfsName, pending));
+        List<Stat> answers = new ArrayList<>();
+        int failed = 0;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        try {
+            while (answers.size() < quorum && answers.size() + failed < replicas.size()) {
+                Future<Stat> answer = stats.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (answer == null)
+                    break;
+                try {
+                    answers.add(answer.get());
+                } catch (ExecutionException e) {
+                    failed++;
+                }
+            }
+            // Answers that are already in are kept, every extra holder is another worker for the ranges
+            Future<Stat> ready;
+            while (answers.size() >= quorum && (ready = stats.poll()) != null) {
+                try {
+                    answers.add(ready.get());
+                } catch (ExecutionException e) {
+                    // Not a holder
+                }
+            }
+        } finally {
+            pending.cancel();
+        }
+        if (answers.size() < quorum)
+            return String.format("Read quorum not reached, %d of %d replicas answered", answers.size(), quorum);
+
+        answers.sort((a, b) -> Long.compare(b.stamp, a.stamp));
+        Stat newest = answers.get(0);
+        if (newest.stamp < 0)
+            return String.format("%s does not exist", sdfsName);
+        List<Stat> holders = new ArrayList<>();
+        for (Stat answer : answers) {
+            if (answer.stamp == newest.stamp && answer.digest.equals(newest.digest))
+                holders.add(answer);
+        }
+        long start = System.nanoTime();
+        try {
+            fetch(holders, sdfsName, localName);
+        } catch (IOException e) {
+            return String.format("Could not fetch %s from the replicas with its newest version: %s", sdfsName,
+                    e.getMessage());
+        }
+        Client.recordLatency("get-fetch", System.nanoTime() - start);
+        return String.format("Got %s (%d bytes, stamp %d) from %d replicas, %d of %d replicas answered", sdfsName,
+                newest.size, newest.stamp, holders.size(), answers.size(), replicas.size());
+    }
+
+    private static Stat stat(String ip, String sdfsName, Pending pending) throws IOException {
+        long start = System.nanoTime();
+        try (Socket socket = FileHandler.openSocket(ip, Server.SERVER_PORT)) {
+            if (!pending.add(socket))
+                throw new InterruptedIOException("Read already complete");
+            new DataOutputStream(socket.getOutputStream()).writeUTF(String.format("stat %s\n", sdfsName));
+            String reply = new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+            if (reply == null)
+                throw new EOFException(String.format("No answer from %s", ip));
+            Client.recordLatency("get-stat", System.nanoTime() - start);
+            if (reply.startsWith("-----"))
+                return new Stat(ip, -1, 0, "", null);
+            String[] fields = reply.trim().split(" ");
+            return new Stat(ip, Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2],
+                    fields.length > 3 ? Integer.parseUnsignedInt(fields[3], 16) : null);
+        }
+    }
+
+    /*
+     * Fetches the version holders reported into localName, which only
+     * appears once the whole file has arrived and its pieces' checksums add
+     * up to the version's
+     */
+    private static void fetch(List<Stat> holders, String sdfsName, String localName)
+            throws IOException, InterruptedException {
+        Stat version = holders.get(0);
+        Path local = Paths.get(clientFileHandler.getFilePath(localName));
+        Path tmp = Files.createTempFile(local.toAbsolutePath().getParent(), localName, ".part");
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ConcurrentLinkedDeque<long[]> ranges = new ConcurrentLinkedDeque<>();
+                // Offset, length and CRC32C of every piece received, cut ranges included
+                ConcurrentLinkedQueue<long[]> pieces = new ConcurrentLinkedQueue<>();
+                for (long offset = 0; offset < version.size; offset += RANGE_SIZE)
+                    ranges.add(new long[]{offset, Math.min(RANGE_SIZE, version.size - offset)});
+
+                List<Stat> alive = new ArrayList<>(holders);
+                // A replica that fails leaves its range behind, the others pick it up in the next round
+                while (!ranges.isEmpty() && !alive.isEmpty()) {
+                    List<Callable<Boolean>> workers = new ArrayList<>();
+                    for (Stat holder : alive)
+                        workers.add(() -> fetchRanges(holder.ip, sdfsName, version.digest, ranges, pieces, out));
+                    List<Future<Boolean>> results = pool.invokeAll(workers);
+                    List<Stat> next = new ArrayList<>();
+                    for (int i = 0; i < alive.size(); i++) {
+                        try {
+                            if (results.get(i).get())
+                                next.add(alive.get(i));
+                        } catch (ExecutionException e) {
+                            // Dropped like any failing replica
+                        }
+                    }
+                    alive = next;
+                }
+                if (!ranges.isEmpty())
+                    throw new IOException(String.format("%d ranges left and no replica to fetch them from",
+                            ranges.size()));
+                if (version.checksum != null && checksum(pieces) != version.checksum)
+                    throw new IOException(String.format("%s failed its checksum", sdfsName));
+            }
+            Files.move(tmp, local, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /*
+     * CRC32C of the whole file from the checksums of the pieces it arrived in
+     */
+    private static int checksum(Collection<long[]> pieces) {
+        List<long[]> sorted = new ArrayList<>(pieces);
+        sorted.sort(Comparator.comparingLong(piece -> piece[0]));
+        int crc = 0;
+        for (long[] piece : sorted)
+            crc = Crc32c.combine(crc, (int) piece[2], piece[1]);
+        return crc;
+    }
+
+    /*
+     * Fetches ranges from ip until none are left, checking each against the
+     * CRC32C that follows it, and adds what it received to pieces. Returns
+     * false if ip failed, after putting back what it had not received of its
+     * last range, or all of it if the range failed its checksum.
+     */
+    private static boolean fetchRanges(String ip, String sdfsName, String digest, Deque<long[]> ranges,
+            Queue<long[]> pieces, FileChannel out) {
+        byte[] bytes = new byte[FileHandler.BUFFER_SIZE];
+        CRC32C crc = new CRC32C();
+        long[] range;
+        while ((range = ranges.poll()) != null) {
+            long received = 0;
+            try (Socket socket = FileHandler.openSocket(ip, Server.SERVER_PORT)) {
+                // A replica that stalls mid-range is given up on like one that fails
+                socket.setSoTimeout(TIMEOUT);
+                new DataOutputStream(socket.getOutputStream())
+                        .writeUTF(String.format("get-range %s %s %d %d\n", sdfsName, digest, range[0], range[1]));
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                in.readBoolean();
+                if (!in.readUTF().equals(digest))
+                    throw new IOException(String.format("%s sent another version", ip));
+                in.readLong();
+                long count = in.readLong();
+                crc.reset();
+                while (received < count) {
+                    int read = in.read(bytes, 0, (int) Math.min(bytes.length, count - received));
+                    if (read < 0)
+                        throw new EOFException(String.format("%s cut a range short", ip));
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+                    while (buffer.hasRemaining())
+                        out.write(buffer, range[0] + received + buffer.position());
+                    crc.update(bytes, 0, read);
+                    received += read;
+                }
+                if (in.readInt() != (int) crc.getValue()) {
+                    received = 0;
+                    throw new IOException(String.format("%s sent a range that failed its checksum", ip));
+                }
+                if (count < range[1])
+                    throw new EOFException(String.format("%s has a shorter version", ip));
+            } catch (IOException e) {
+                // What did arrive of a cut range is kept, the whole-file checksum covers it
+                ranges.addFirst(new long[]{range[0] + received, range[1] - received});
+                return false;
+            } finally {
+                if (received > 0)
+                    pieces.add(new long[]{range[0], received, crc.getValue()});
+            }
+        }
+        return true;
+    }
+}
+
+/**
+ * Latency histogram with buckets a quarter of a power of two wide, from 1 us
+ * up, so percentiles are within 25% at any scale with a fixed 256 counters
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKETS = 4;
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+    void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(1, nanos / 1000)));
+    }
+
+    private static int bucket(long micros) {
+        int power = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = power < 2 ? 0 : (int) ((micros >>> (power - 2)) & (SUB_BUCKETS - 1));
+        return power * SUB_BUCKETS + sub;
+    }
+
+    /*
+     * Upper bound in microseconds of the values counted in bucket
+     */
+    private static long upperBound(int bucket) {
+        int power = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        if (power < 2)
+            return (2L << power) - 1;
+        return ((long) (SUB_BUCKETS + sub + 1) << (power - 2)) - 1;
+    }
+
+    long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    /*
+     * Latency in microseconds that a fraction p of the samples do not exceed
+     */
+    long percentile(double p) {
+        long total = count();
+        long target = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(1, target))
+                return upperBound(i);
+        }
+        return 0;
+    }
+
+    String summary(String name) {
+        return String.format("%-10s n=%-6d p50 %8.2f ms   p90 %8.2f ms   p99 %8.2f ms   max %8.2f ms", name, count(),
+                percentile(0.5) / 1e3, percentile(0.9) / 1e3, percentile(0.99) / 1e3, percentile(1.0) / 1e3);
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C, which the JDK computes with the CPU's CRC instructions, and the
+ * combination of two CRCs into the CRC of the concatenated data, so a
+ * stream's checksum comes from its chunks' without touching the bytes
+ */
+final class Crc32c {
+    private static final int POLY = 0x82f63b78;
+    // ZEROS[k] appends 2^k zero bytes to a CRC, as a matrix over GF(2)
+    private static final int[][] ZEROS = new int[64][];
+
+    static {
+        int[] bit = new int[32];
+        bit[0] = POLY;
+        for (int n = 1; n < 32; n++)
+            bit[n] = 1 << (n - 1);
+        int[] operator = bit;
+        for (int i = 0; i < 3; i++)
+            operator = square(operator);
+        ZEROS[0] = operator;
+        for (int k = 1; k < ZEROS.length; k++)
+            ZEROS[k] = square(ZEROS[k - 1]);
+    }
+
+    static int of(byte[] data, int off, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+
+    /*
+     * CRC of a + b from crcA, crcB and the length of b
+     */
+    static int combine(int crcA, int crcB, long lengthB) {
+        for (int k = 0; lengthB != 0; k++, lengthB >>>= 1) {
+            if ((lengthB & 1) != 0)
+                crcA = times(ZEROS[k], crcA);
+        }
+        return crcA ^ crcB;
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0)
+                sum ^= matrix[i];
+        }
+        return sum;
+    }
+
+    private static int[] square(int[] matrix) {
+        int[] result = new int[32];
+        for (int n = 0; n < 32; n++)
+            result[n] = times(matrix, matrix[n]);
+        return result;
+    }
+}
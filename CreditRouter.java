@@ -0,0 +1,383 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Credit-based flow control from the spout to the bolts. Each bolt opens
+ * with how many executors it runs and how many batches it has room for, its
+ * credits, and hands one back whenever it has read a batch. The spout only
+ * starts a batch for a bolt against a credit, and starts each batch for
+ * the bolt with the smallest share of its room in use, so a slow bolt stops
+ * getting tuples instead of stalling the spout on a full socket while the
+ * others sit idle.
+ *
+ * Given a key field, the router instead sends every tuple to the bolt its
+ * key hashes to, still against that bolt's credits, so each bolt aggregates
+ * whole keys. The keys of a bolt that goes away move to the others, without
+ * the state it had for them.
+ *
+ * The batches a bolt has not credited back are kept. If the bolt goes away
+ * they are sent to the others, along with the batch that failed. Tuples a
+ * bolt has already read are its own, Crane has no acks, and go with it.
+ */
+final class CreditRouter {
+    // Batches a bolt may have in flight per executor
+    static final int CREDITS = Integer.getInteger("sdfs.craneCredits", 2);
+    // Router of the running or last job, for crane-stats
+    private static volatile CreditRouter last;
+
+    private final List<Bolt> bolts = new ArrayList<>();
+    // Batches of bolts that went away, sent again before any new tuple
+    private final ArrayDeque<List<String>> retries = new ArrayDeque<>();
+    private final long started = System.nanoTime();
+    // Comma separated field of the tuples that picks their bolt, -1 for the least loaded
+    private final int keyField;
+    // Bolts that went away, so the spout sends what they were being sent elsewhere
+    private volatile int failures;
+    // Only touched by the spout thread
+    private Bolt current;
+    private int failuresSeen;
+    // Time the spout waited with no bolt holding a credit, guarded by this
+    private long waited;
+    private boolean finished;
+
+    private final class Bolt {
+        final String ip;
+        final SocketChannel channel;
+        final Tuples.Writer writer;
+        final int executors;
+        final int capacity;
+        // Batch being filled for the bolt and whether it holds a credit, only touched by the spout thread
+        List<String> batch = new ArrayList<>();
+        int batchBytes;
+        boolean open;
+        // Everything below is guarded by the router
+        int credits;
+        boolean alive = true;
+        final ArrayDeque<List<String>> outstanding = new ArrayDeque<>();
+        long tuples;
+        long batches;
+        long depths;
+        int maxDepth;
+        long fullSince = -1;
+        long full;
+
+        Bolt(String ip, SocketChannel channel, int executors, int capacity) {
+            this.ip = ip;
+            this.channel = channel;
+            this.writer = new Tuples.Writer(channel);
+            this.executors = executors;
+            this.capacity = capacity;
+            this.credits = capacity;
+        }
+
+        /*
+         * Share of its credits in use, the bolt with the least gets the next batch
+         */
+        double load() {
+            return (double) (capacity - credits) / capacity;
+        }
+    }
+
+    CreditRouter(int keyField) {
+        this.keyField = keyField;
+        last = this;
+    }
+
+    /*
+     * Takes on a bolt that just connected, once it has said how many
+     * executors and credits it has
+     */
+    void add(SocketChannel channel) throws IOException {
+        ByteBuffer hello = ByteBuffer.allocate(8);
+        while (hello.hasRemaining()) {
+            if (channel.read(hello) < 0)
+                throw new EOFException("Bolt closed before naming its executors and credits");
+        }
+        InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
+        String ip = String.format("%s:%d", address.getAddress().getHostAddress(), address.getPort());
+        Bolt bolt = new Bolt(ip, channel, Math.max(1, hello.getInt(0)), Math.max(1, hello.getInt(4)));
+        synchronized (this) {
+            bolts.add(bolt);
+        }
+        Thread thread = new Thread(() -> readCredits(bolt), String.format("crane-credits-%s", ip));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void readCredits(Bolt bolt) {
+        ByteBuffer credit = ByteBuffer.allocate(4);
+        try {
+            while (true) {
+                credit.clear();
+                while (credit.hasRemaining()) {
+                    if (bolt.channel.read(credit) < 0)
+                        throw new EOFException("Bolt closed the stream");
+                }
+                int n = credit.getInt(0);
+                synchronized (this) {
+                    bolt.credits += n;
+                    for (int i = 0; i < n; i++)
+                        bolt.outstanding.poll();
+                    if (bolt.fullSince >= 0) {
+                        bolt.full += System.nanoTime() - bolt.fullSince;
+                        bolt.fullSince = -1;
+                    }
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            fail(bolt, e);
+        }
+    }
+
+    /*
+     * Sends tuple to a bolt, blocks while every bolt is out of credits
+     */
+    void write(String tuple) throws IOException, InterruptedException {
+        resend();
+        append(tuple);
+    }
+
+    private void append(String tuple) throws IOException, InterruptedException {
+        byte[] encoded = tuple.getBytes(StandardCharsets.UTF_8);
+        Bolt bolt = route(tuple);
+        if (bolt != null && !bolt.batch.isEmpty() && bolt.batchBytes + 4 + encoded.length > Tuples.BATCH - 4)
+            flush(bolt);
+        while (bolt == null || !bolt.open) {
+            Bolt acquired = acquire(keyField < 0 ? null : bolt);
+            // A keyed bolt that went away meanwhile has had its keys moved
+            if (acquired == null) {
+                bolt = route(tuple);
+                continue;
+            }
+            bolt = acquired;
+            bolt.open = true;
+            if (keyField < 0)
+                current = bolt;
+        }
+        bolt.batch.add(tuple);
+        bolt.batchBytes += 4 + encoded.length;
+        try {
+            // Never fills the writer's batch, a tuple larger than one goes out on its own
+            bolt.writer.write(encoded);
+        } catch (IOException e) {
+            // The batch goes to the retries with the rest of what the bolt had
+            fail(bolt, e);
+            flush(bolt);
+            return;
+        }
+        if (bolt.batchBytes > Tuples.BATCH - 4)
+            flush(bolt);
+    }
+
+    /*
+     * The bolt tuple goes to, which may not hold a credit yet, or null for
+     * the least loaded with one
+     */
+    private Bolt route(String tuple) throws IOException {
+        if (keyField < 0)
+            return current;
+        int start = Aggregate.start(tuple, keyField);
+        int end = Aggregate.end(tuple, start);
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + tuple.charAt(i);
+        return owner(hash ^ (hash >>> 16));
+    }
+
+    private synchronized Bolt owner(int hash) throws IOException {
+        Bolt bolt = bolts.get(Math.floorMod(hash, bolts.size()));
+        if (bolt.alive)
+            return bolt;
+        // The keys of a bolt that went away spread over the rest, the others keep theirs
+        List<Bolt> alive = new ArrayList<>();
+        for (Bolt b : bolts) {
+            if (b.alive)
+                alive.add(b);
+        }
+        if (alive.isEmpty())
+            throw new IOException("Every bolt is gone");
+        return alive.get(Math.floorMod(hash * 0x9E3779B9, alive.size()));
+    }
+
+    /*
+     * Sends the batch being filled for bolt. It counts as outstanding on
+     * the bolt until the bolt credits it back.
+     */
+    private void flush(Bolt bolt) {
+        if (!bolt.open)
+            return;
+        List<String> sent = bolt.batch;
+        bolt.batch = new ArrayList<>();
+        bolt.batchBytes = 0;
+        bolt.open = false;
+        if (current == bolt)
+            current = null;
+        synchronized (this) {
+            if (!bolt.alive) {
+                retries.add(sent);
+                return;
+            }
+            bolt.outstanding.add(sent);
+            bolt.batches++;
+            bolt.tuples += sent.size();
+            bolt.depths += bolt.outstanding.size();
+            bolt.maxDepth = Math.max(bolt.maxDepth, bolt.outstanding.size());
+        }
+        try {
+            bolt.writer.flush();
+        } catch (IOException e) {
+            fail(bolt, e);
+        }
+    }
+
+    private void resend() throws IOException, InterruptedException {
+        // What was being batched for a bolt that went away joins the retries
+        if (failuresSeen != failures) {
+            failuresSeen = failures;
+            for (Bolt bolt : bolts)
+                flush(bolt);
+        }
+        while (true) {
+            List<String> retry;
+            synchronized (this) {
+                retry = retries.poll();
+            }
+            if (retry == null)
+                return;
+            for (String tuple : retry)
+                append(tuple);
+        }
+    }
+
+    /*
+     * Takes a credit from target, or from the least loaded bolt that has one
+     * if target is null. Returns null if target went away.
+     */
+    private synchronized Bolt acquire(Bolt target) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                Bolt best = null;
+                boolean alive = false;
+                for (Bolt bolt : bolts) {
+                    alive |= bolt.alive;
+                    if (bolt.alive && bolt.credits > 0 && (best == null || bolt.load() < best.load()))
+                        best = bolt;
+                }
+                if (!alive)
+                    throw new IOException("Every bolt is gone");
+                if (target != null) {
+                    if (!target.alive)
+                        return null;
+                    best = target.credits > 0 ? target : null;
+                }
+                if (best != null) {
+                    if (--best.credits == 0)
+                        best.fullSince = System.nanoTime();
+                    return best;
+                }
+                wait();
+            }
+        } finally {
+            waited += System.nanoTime() - start;
+        }
+    }
+
+    /*
+     * Drops a bolt that went away and queues what it had not credited back
+     * for the others
+     */
+    private void fail(Bolt bolt, IOException e) {
+        int lost;
+        synchronized (this) {
+            if (!bolt.alive || finished)
+                return;
+            bolt.alive = false;
+            if (bolt.fullSince >= 0) {
+                bolt.full += System.nanoTime() - bolt.fullSince;
+                bolt.fullSince = -1;
+            }
+            lost = 0;
+            for (List<String> sent : bolt.outstanding)
+                lost += sent.size();
+            retries.addAll(bolt.outstanding);
+            bolt.outstanding.clear();
+            failures++;
+            notifyAll();
+        }
+        Server.writeToLog(AsyncLogger.Level.WARN, String.format("Bolt %s failed (%s), resending %d tuples",
+                bolt.ip, e.getMessage(), lost));
+    }
+
+    /*
+     * Sends the last batch, waits until every bolt has credited back all it
+     * was sent, resending what failed bolts had, then ends every stream
+     */
+    void finish() throws IOException, InterruptedException {
+        while (true) {
+            resend();
+            for (Bolt bolt : bolts)
+                flush(bolt);
+            synchronized (this) {
+                boolean drained = true;
+                for (Bolt bolt : bolts)
+                    drained &= !bolt.alive || bolt.outstanding.isEmpty();
+                if (retries.isEmpty() && drained) {
+                    finished = true;
+                    break;
+                }
+                if (retries.isEmpty())
+                    wait();
+            }
+        }
+        for (Bolt bolt : bolts) {
+            if (bolt.alive)
+                bolt.writer.close();
+        }
+    }
+
+    void close() {
+        for (Bolt bolt : bolts) {
+            try {
+                bolt.channel.close();
+            } catch (IOException e) {
+                Server.writeToLog(e);
+            }
+        }
+    }
+
+    /*
+     * One line per bolt: tuples and batches sent, credits, batches in flight
+     * now, on average and at most, and how long it had no credit left
+     */
+    synchronized String stats() {
+        StringBuilder sb = new StringBuilder(String.format("%d s, spout waited for credit %d ms%n",
+                (System.nanoTime() - started) / 1_000_000_000L, waited / 1_000_000));
+        for (Bolt bolt : bolts) {
+            long full = bolt.full + (bolt.fullSince >= 0 ? System.nanoTime() - bolt.fullSince : 0);
+            sb.append(String.format("%s%s: %d executors, %d tuples in %d batches, credits %d/%d, "
+                    + "queue depth %d now, %.1f avg, %d max, no credit for %d ms%n", bolt.ip,
+                    bolt.alive ? "" : " (failed)", bolt.executors, bolt.tuples, bolt.batches, bolt.credits,
+                    bolt.capacity, bolt.outstanding.size(),
+                    bolt.batches == 0 ? 0.0 : (double) bolt.depths / bolt.batches, bolt.maxDepth,
+                    full / 1_000_000));
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Stats of the running or last job on this spout
+     */
+    static String lastStats() {
+        CreditRouter router = last;
+        return router == null ? "No crane job has run here" : router.stats();
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Accepts re-replicated files from other servers over the peer transport:
+ * a query for the stamp of our newest version of the file, so only newer
+ * versions are sent, then each version's manifest with which of its chunks
+ * we lack, and only those chunks are streamed
+ */
+class FailureReplicaReceiver {
+    static final String HAS = "re-replicate-has";
+    static final String MISSING = "re-replicate-missing";
+    static final String FILE = "re-replicate";
+
+    static void register() {
+        // A deleted file answers with its tombstone, so only versions put after the delete are sent
+        Transport.register(HAS, (peer, args, body) -> {
+            Version latest = VersionIndex.get(args[1]).latest();
+            return Long.toString(latest == null ? VersionIndex.getTombstone(args[1]) : latest.stamp);
+        });
+        Transport.register(MISSING, FileHandler::missingChunks);
+        Transport.register(FILE, (peer, args, body) -> {
+            FileHandler.receiveReplica(args[1], Long.parseLong(args[2]), args.length > 3 ? args[3] : null, body);
+            Server.writeToLog(String.format("Saved re-replication file: %s", args[1]));
+            return "saved";
+        });
+    }
+}
@@ -1,36 +1,71 @@
 import java.io.*;
-import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
-
-import static java.lang.Math.abs;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
 
 public class FileHandler {
     static final String USER_DIR = "user.dir";
     static final String SDFS_DIR = "sdfs";
+    // Puts are staged here under their transaction ID until the head commits or aborts them
+    static final String STAGING_DIR = "sdfs-staging";
+    // Staged puts whose commit or abort never arrived are dropped after this long
+    static final long STAGING_TTL = 10 * 60 * 1000;
+    // Chunks a re-replication receiver said it had stay referenced this long for the replica to follow
+    static final long HOLD_TTL = 2L * Transport.TIMEOUT;
     static final int BUFFER_SIZE  = 1000000;
-    static final int REPLICA_PORT = 2018;
-    static final int FAILURE_REPLICA_PORT = 5000;
-    static final String DELIMITER = "\n--NEW FILE--\n";
-
-    static File[] getFiles() throws IOException {
-        Files.createDirectories(Paths.get(getDirectoryPath()));
-        File directory = new File(getDirectoryPath());
-        return directory.listFiles();
+    static final int NUM_REPLICAS = 4;
+    // Replicas that must stage a put before it commits, and that a read must hear from. W + R > NUM_REPLICAS
+    // makes every read see the newest committed version.
+    static final int WRITE_QUORUM = Integer.getInteger("sdfs.writeQuorum", 3);
+    static final int READ_QUORUM = Integer.getInteger("sdfs.readQuorum", 2);
+    // Transport connections between servers
+    static final int PEER_PORT = 5000;
+    private static volatile RingCache ringCache;
+    private static final AtomicLong transactions = new AtomicLong();
+    // References missingChunks took on chunks a replica on its way will need, by hold
+    private static final ConcurrentHashMap<String, List<String>> holds = new ConcurrentHashMap<>();
+    private static final AtomicLong holdIds = new AtomicLong();
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    // FileChannel.transferFrom drains sockets 8 KB at a time, so receives go through a direct buffer instead
+    private static final ThreadLocal<ByteBuffer> directBuffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    /*
+     * Sockets opened through NIO channels let sendFile hand file bytes to the
+     * kernel with transferTo and let receiveFile skip the heap through a direct
+     * buffer. Plain java.net sockets still work but copy through a byte[].
+     */
+    static Socket openSocket(String ip, int port) throws IOException {
+        return SocketChannel.open(new InetSocketAddress(ip, port)).socket();
     }
 
-    static File[] listVersions(String filename) {
-        File file = new File(getFilePath(filename));
-        if (file.isDirectory()) {
-            return file.listFiles();
-        }
-        return new File[]{file};
+    static ServerSocket openServerSocket(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.bind(new InetSocketAddress(Server.getBindAddress(), port));
+        return channel.socket();
     }
 
 
@@ -38,27 +73,60 @@ public class FileHandler {
         return Server.group.get(0);
     }
 
+    /*
+     * Ring over a membership snapshot. The ring of the latest snapshot is
+     * cached, so it is only rebuilt when the membership version changes.
+     */
+    static HashRing getRing(Membership view) {
+        RingCache cached = ringCache;
+        if (cached == null || cached.view.getVersion() != view.getVersion()) {
+            cached = new RingCache(view, new HashRing(view.asList()));
+            ringCache = cached;
+        }
+        return cached.ring;
+    }
+
+    private static final class RingCache {
+        final Membership view;
+        final HashRing ring;
+
+        RingCache(Membership view, HashRing ring) {
+            this.view = view;
+            this.ring = ring;
+        }
+    }
+
     static int getNodeFromFile(String filename) {
-        return abs((filename.hashCode() % 10) % Server.group.size());
+        Membership view = Server.group;
+        return view.indexOf(getRing(view).getPrimary(filename));
     }
 
-    static void printFiles() throws IOException {
-        for (File f : getFiles())
+    /*
+     * Lists the SDFS files on this machine straight from disk, each file is a
+     * directory of its versions. The client calls this and has no VersionIndex.
+     */
+    static void printFiles() {
+        File[] files = new File(getDirectoryPath()).listFiles(File::isDirectory);
+        if (files == null)
+            return;
+        for (File f : files)
             System.out.println(f.getName());
     }
 
-    static boolean isReplicaNode(String filename, int idx) {
-        int numReplicas = 4;
-        int lower = getNodeFromFile(filename);
-        int upper = (lower + numReplicas) % Server.group.size();
-        if (lower < upper) {
-            return idx >= lower && idx < upper;
-        }
-        return idx < upper || idx >= lower;
+    static boolean isReplicaNode(String filename, Membership view, String ip) {
+        return getRing(view).getReplicas(filename, NUM_REPLICAS).contains(ip);
+    }
+
+    /*
+     * Replica set of a file in chain order, the first entry is the head that
+     * clients upload to
+     */
+    static ArrayList<String> getReplicaIPs(String filename) {
+        return new ArrayList<>(getRing(Server.group).getReplicas(filename, NUM_REPLICAS));
     }
 
     static boolean fileExists(String filename) {
-        return Files.exists(Paths.get(getFilePath(filename)));
+        return VersionIndex.contains(filename);
     }
 
     static String getDirectoryPath() {
@@ -69,142 +137,675 @@ public class FileHandler {
         return String.format("%s/%s", getDirectoryPath(), filename);
     }
 
-    static Path getNewFilePath(String filename) throws IOException {
-        if (!fileExists(filename))
-            Files.createDirectories(Paths.get(getFilePath(filename)));
-        String newFilePath = String.format("%s/%s", getFilePath(filename), fileNameSafeString(Server.getCurrentDateAsString()));
-        while (Files.exists(Paths.get(newFilePath)));
-            newFilePath = String.format("%s/%s", getFilePath(filename), fileNameSafeString(Server.getCurrentDateAsString()));
-        return Files.createFile(Paths.get(newFilePath));
+    /*
+     * Transaction ID of a put this node is the head of, unique across restarts
+     */
+    static String newTransaction() {
+        return String.format("%s-%d-%d", Server.ip, Gossip.getIncarnation(), transactions.incrementAndGet());
     }
 
-    static String fileNameSafeString(String filename) {
-        return filename.replaceAll("[^a-zA-Z0-9\\.\\-]", "_");
+    static Path getStagingPath(String txn) throws IOException {
+        Path dir = Paths.get(System.getProperty(USER_DIR), STAGING_DIR);
+        Files.createDirectories(dir);
+        return dir.resolve(fileNameSafeString(txn));
     }
 
-    static void appendFileToFile(File src, File dst) throws IOException {
-        FileInputStream in =  new FileInputStream(src);
-        FileOutputStream out = new FileOutputStream(dst, true);
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int count;
-        while ((count = in.read(buffer)) > 0) {
-            out.write(buffer, 0, count);
+    /*
+     * Makes a staged put the newest version of filename under the head's
+     * stamp. Returns false if nothing was staged under txn here.
+     */
+    static boolean commitStaged(String txn, String filename, long stamp) throws IOException {
+        Path staged = getStagingPath(txn);
+        Manifest manifest;
+        try {
+            manifest = Manifest.read(staged);
+        } catch (NoSuchFileException e) {
+            return false;
         }
+        VersionIndex.add(filename, staged, manifest, stamp);
+        return true;
     }
 
-    static void deleteFile(String filename) throws IOException {
-        for (File file : listVersions(filename)) {
-            file.delete();
+    static boolean abortStaged(String txn) throws IOException {
+        return dropStaged(getStagingPath(txn));
+    }
+
+    /*
+     * Deletes a staged manifest and gives back its chunk references
+     */
+    private static boolean dropStaged(Path staged) throws IOException {
+        Manifest manifest;
+        try {
+            manifest = Manifest.read(staged);
+        } catch (NoSuchFileException e) {
+            return false;
         }
-        new File(getFilePath(filename)).delete();
+        if (!Files.deleteIfExists(staged))
+            return false;
+        ChunkStore.release(manifest);
+        return true;
     }
 
-    static void sendReplicaSignal(String ip, boolean signal) throws IOException {
-        boolean scanning = true;
-        Socket socket;
-        while(scanning) try {
-            socket = new Socket(ip, REPLICA_PORT);
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-            out.writeBoolean(signal);
-            scanning = false;
-        } catch (ConnectException e) {
-            continue;
+    /*
+     * Tells every replica of filename whether to keep or drop what it staged
+     * for txn. A commit carries the version's stamp, so every replica orders
+     * it the same way. A replica that misses the decision drops its copy
+     * after STAGING_TTL and re-replication fills it in.
+     */
+    static void finishTransaction(String txn, String filename, List<String> replicas, boolean commit) {
+        long stamp = VersionIndex.get(filename).nextStamp(0);
+        String command = commit ? String.format("chain-commit %s %s %d", txn, filename, stamp)
+                : String.format("chain-abort %s", txn);
+        for (String ip : replicas) {
+            try {
+                if (ip.equals(Server.ip)) {
+                    if (commit)
+                        commitStaged(txn, filename, stamp);
+                    else
+                        abortStaged(txn);
+                } else {
+                    Transport.call(ip, command);
+                }
+            } catch (IOException e) {
+                Server.writeToLog(String.format("Could not %s %s on %s: %s", commit ? "commit" : "abort", txn, ip,
+                        e.getMessage()));
+            }
         }
     }
 
-    static boolean receiveReplicaSignal() throws IOException {
-        ServerSocket serverSocket = new ServerSocket(REPLICA_PORT);
-        Socket socket = serverSocket.accept();
-        DataInputStream in = new DataInputStream(socket.getInputStream());
-        boolean signal = in.readBoolean();
-        serverSocket.close();
-        return signal;
+    /*
+     * Drops staged puts that were never committed or aborted, e.g. because
+     * their head failed mid-put
+     */
+    static void sweepStaging() throws IOException {
+        Path dir = Paths.get(System.getProperty(USER_DIR), STAGING_DIR);
+        if (!Files.isDirectory(dir))
+            return;
+        long cutoff = System.currentTimeMillis() - STAGING_TTL;
+        try (DirectoryStream<Path> staged = Files.newDirectoryStream(dir)) {
+            for (Path path : staged) {
+                if (Files.getLastModifiedTime(path).toMillis() < cutoff) {
+                    Server.writeToLog(String.format("Dropping abandoned put %s", path.getFileName()));
+                    dropStaged(path);
+                }
+            }
+        }
     }
 
-    static int numVersions(String filename) throws IOException {
-        File file = new File(getFilePath(filename));
-        if (file.isDirectory())
-            return file.list().length;
-        return 1;
+    static String fileNameSafeString(String filename) {
+        return filename.replaceAll("[^a-zA-Z0-9\\.\\-]", "_");
     }
 
-    static File getVersionContent(String filename, int version) throws IOException, IndexOutOfBoundsException {
-        File[] versions = listVersions(filename);
-        if (versions.length == 0) {
-            deleteFile(filename);
-            throw new IOException("There are no versions of this file");
-        }
+    /*
+     * Deletes every version of filename, chunks no other version shares are
+     * garbage collected with them. It leaves a tombstone stamped after its
+     * newest version so replicas that missed the delete drop their copies too.
+     */
+    static void deleteFile(String filename) throws IOException {
+        Version latest = VersionIndex.get(filename).latest();
+        long stamp = System.currentTimeMillis();
+        deleteFile(filename, latest == null ? stamp : Math.max(stamp, latest.stamp + 1));
+    }
 
-        Arrays.sort(versions, new Comparator<File>(){
-            public int compare(File f1, File f2) {
-                return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
-            }
-        });
-        return versions[version];
+    /*
+     * Deletes filename with the tombstone another replica gave it
+     */
+    static void deleteFile(String filename, long tombstone) throws IOException {
+        for (Manifest manifest : VersionIndex.remove(filename, tombstone))
+            ChunkStore.release(manifest);
+    }
+
+    /*
+     * Removes this node's copy of a file it is no longer a replica of. No
+     * tombstone: the file lives on elsewhere.
+     */
+    static void dropFile(String filename) throws IOException {
+        deleteFile(filename, -1);
+    }
+
+    static int numVersions(String filename) {
+        return VersionIndex.get(filename).size();
+    }
+
+    /*
+     * Versions count from 0 for the oldest one still stored
+     */
+    static Version getVersionInfo(String filename, int version) throws IOException {
+        VersionList versions = VersionIndex.get(filename);
+        if (version < 0 || version >= versions.size())
+            throw new FileNotFoundException(String.format("%s has no version %d", filename, version));
+        return versions.get(version);
     }
 
     static void sendFile(File file, Socket socket, int version) throws IOException {
         sendFile(file.getName(), socket, version);
     }
 
+    static Manifest getVersion(String filename, int version) throws IOException {
+        return Manifest.read(VersionIndex.getManifestPath(filename, getVersionInfo(filename, version)));
+    }
+
     static void sendFile(String filename, Socket socket, int version) throws IOException {
-        // Instantiate streams
-        File fileVersion = getVersionContent(filename, version);
-        FileInputStream in = new FileInputStream(fileVersion);
-        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        ChunkStore.send(getVersion(filename, version), socket);
+    }
 
-        long numBytes = fileVersion.length();
-        // Handle empty files by throwing an exception
-        if (numBytes <= 0) {
-            fileVersion.delete();
-            throw new IOException("Tried to send empty file");
+    /*
+     * Streams the newest count versions of filename, or all of them if it
+     * has fewer, oldest first: the number of versions, the number, length and
+     * CRC32C of each, then their bytes back to back. The header goes out through
+     * header, which is flushed before the versions follow on the socket.
+     * Returns how many versions were sent.
+     */
+    static int sendVersions(String filename, int count, Socket socket, DataOutputStream header) throws IOException {
+        VersionList versions = VersionIndex.get(filename);
+        int first = Math.max(0, versions.size() - count);
+        List<Version> sent = versions.versions.subList(first, versions.size());
+        List<Manifest> manifests = new ArrayList<>();
+        for (Version version : sent)
+            manifests.add(Manifest.read(VersionIndex.getManifestPath(filename, version)));
+
+        header.writeInt(sent.size());
+        for (int i = 0; i < sent.size(); i++) {
+            header.writeLong(sent.get(i).number);
+            header.writeLong(sent.get(i).size);
+            header.writeInt(manifests.get(i).checksum());
         }
-        out.writeLong(numBytes);
+        header.flush();
+        SocketChannel channel = socket.getChannel();
+        for (Manifest manifest : manifests) {
+            if (channel != null) {
+                ChunkStore.transferTo(manifest, channel);
+            } else {
+                for (String hash : manifest.hashes)
+                    Files.copy(ChunkStore.getChunkPath(hash), socket.getOutputStream());
+            }
+        }
+        return sent.size();
+    }
 
-        // Send the file
-        int count;
-        byte[] buffer = new byte[BUFFER_SIZE];
-        while ((count = in.read(buffer)) > 0) {
-            out.write(buffer, 0, count);
+    /*
+     * Serves length bytes from offset of a version of filename. token picks
+     * the version: "latest", or the digest a previous range reported, so a
+     * transfer resumed later or on another replica continues with the same
+     * bytes. The header (the version's digest, total size and the number of
+     * bytes that follow) goes out through header; the bytes are read with
+     * positional transfers from just the chunks the range covers and are
+     * followed by their CRC32C. Whole chunks take their stored checksum, only
+     * the partial chunks at either end are read to checksum them.
+     */
+    static long sendRange(String filename, String token, long offset, long length, Socket socket,
+            DataOutputStream header) throws IOException {
+        Version version = null;
+        for (Version candidate : VersionIndex.get(filename).versions) {
+            if (token.equals("latest") || candidate.digest.equals(token))
+                version = candidate;
         }
+        if (version == null)
+            throw new FileNotFoundException(String.format("%s has no version %s", filename, token));
+        Manifest manifest = Manifest.read(VersionIndex.getManifestPath(filename, version));
+        long start = Math.min(Math.max(0, offset), manifest.size);
+        long count = Math.min(Math.max(0, length), manifest.size - start);
+
+        header.writeBoolean(true);
+        header.writeUTF(version.digest);
+        header.writeLong(manifest.size);
+        header.writeLong(count);
+        header.flush();
+        if (!manifest.hasChecksums())
+            manifest = manifest.withChecksums();
+        SocketChannel channel = socket.getChannel();
+        OutputStream out = channel == null ? socket.getOutputStream() : null;
+        int checksum = 0;
+        long chunkStart = 0;
+        long end = start + count;
+        for (int i = 0; i < manifest.hashes.size() && chunkStart < end; i++) {
+            long chunkEnd = chunkStart + manifest.lengths.get(i);
+            if (chunkEnd > start) {
+                long from = Math.max(start, chunkStart) - chunkStart;
+                long to = Math.min(end, chunkEnd) - chunkStart;
+                long piece = to - from;
+                boolean whole = piece == manifest.lengths.get(i);
+                if (whole)
+                    checksum = Crc32c.combine(checksum, manifest.crcs.get(i), piece);
+                try (FileChannel in = FileChannel.open(ChunkStore.getChunkPath(manifest.hashes.get(i)))) {
+                    if (channel != null && whole) {
+                        while (from < to)
+                            from += in.transferTo(from, to - from, channel);
+                    } else {
+                        ByteBuffer buffer = ByteBuffer.wrap(buffers.get());
+                        CRC32C crc = new CRC32C();
+                        while (from < to) {
+                            buffer.clear().limit((int) Math.min(buffer.capacity(), to - from));
+                            int read = in.read(buffer, from);
+                            if (read < 0)
+                                throw new EOFException(String.format("Chunk %s is short", manifest.hashes.get(i)));
+                            crc.update(buffer.array(), 0, read);
+                            if (channel != null) {
+                                buffer.flip();
+                                while (buffer.hasRemaining())
+                                    channel.write(buffer);
+                            } else {
+                                out.write(buffer.array(), 0, read);
+                            }
+                            from += read;
+                        }
+                        if (!whole)
+                            checksum = Crc32c.combine(checksum, (int) crc.getValue(), piece);
+                    }
+                }
+            }
+            chunkStart = chunkEnd;
+        }
+        DataOutputStream trailer = new DataOutputStream(channel != null ? socket.getOutputStream() : out);
+        trailer.writeInt(checksum);
+        trailer.flush();
+        return count;
     }
 
-    static void sendFile(File file, Socket socket) throws IOException {
-        // Instantiate streams
-        FileInputStream in = new FileInputStream(file);
-        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+    /*
+     * Reads a sendVersions response into dir as <filename>.<version number>
+     * and returns the files written
+     */
+    static List<Path> receiveVersions(String filename, Socket socket, Path dir) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        int count = in.readInt();
+        long[] numbers = new long[count];
+        long[] sizes = new long[count];
+        int[] crcs = new int[count];
+        for (int i = 0; i < count; i++) {
+            numbers[i] = in.readLong();
+            sizes[i] = in.readLong();
+            crcs[i] = in.readInt();
+        }
+        List<Path> received = new ArrayList<>();
+        byte[] buffer = buffers.get();
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < count; i++) {
+            Path path = dir.resolve(String.format("%s.%d", filename, numbers[i]));
+            crc.reset();
+            try (OutputStream out = Files.newOutputStream(path)) {
+                long remaining = sizes[i];
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0)
+                        throw new EOFException(String.format("Version %d of %s was cut short", numbers[i], filename));
+                    crc.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+            received.add(path);
+            if ((int) crc.getValue() != crcs[i])
+                throw new IOException(String.format("Version %d of %s failed its checksum", numbers[i], filename));
+        }
+        return received;
+    }
 
+    /*
+     * Sends a file as its length, its bytes and their CRC32C. A plain file
+     * has no stored checksum, so it goes through a buffer that is
+     * checksummed on the way instead of transferTo.
+     */
+    static void sendFile(File file, Socket socket) throws IOException {
         long numBytes = file.length();
         // Handle empty files by throwing an exception
         if (numBytes <= 0) {
             file.delete();
             throw new IOException("Tried to send empty file");
         }
-        out.writeLong(numBytes);
 
-        // Send the file
-        int count;
-        byte[] buffer = new byte[BUFFER_SIZE];
-        while ((count = in.read(buffer)) > 0) {
-            out.write(buffer, 0, count);
+        try (FileInputStream in = new FileInputStream(file)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeLong(numBytes);
+            out.flush();
+
+            // Send the file
+            CRC32C crc = new CRC32C();
+            SocketChannel channel = socket.getChannel();
+            if (channel != null) {
+                FileChannel fileChannel = in.getChannel();
+                ByteBuffer buffer = directBuffers.get();
+                buffer.clear();
+                while (fileChannel.read(buffer) > 0) {
+                    buffer.flip();
+                    crc.update(buffer.duplicate());
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                    buffer.clear();
+                }
+            } else {
+                int count;
+                byte[] buffer = buffers.get();
+                while ((count = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                }
+            }
+            out.writeInt((int) crc.getValue());
+            out.flush();
         }
-
     }
 
     static void receiveFile(String filename, Socket socket) throws IOException {
-        File file = getNewFilePath(filename).toFile();
-        FileOutputStream out = new FileOutputStream(file);
         DataInputStream in = new DataInputStream(socket.getInputStream());
 
         long numBytes = in.readLong();
 
-        // Receive and write to file
-        int count;
-        byte[] buffer = new byte[BUFFER_SIZE];
-        while ((count = in.read(buffer)) > 0) {
-            out.write(buffer, 0, count);
-            if ((numBytes -= count) == 0)
-                break;
+        // Receive and chunk into the store, checksumming the bytes as they pass
+        ChunkStore.Writer writer = new ChunkStore.Writer();
+        CRC32C crc = new CRC32C();
+        SocketChannel channel = socket.getChannel();
+        long received = 0;
+        try {
+            if (channel != null) {
+                ByteBuffer buffer = directBuffers.get();
+                int count;
+                buffer.clear().limit((int) Math.min(buffer.capacity(), numBytes));
+                while (received < numBytes && (count = channel.read(buffer)) > 0) {
+                    received += count;
+                    buffer.flip();
+                    crc.update(buffer.duplicate());
+                    writer.write(buffer);
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), numBytes - received));
+                }
+            } else {
+                int count;
+                byte[] buffer = buffers.get();
+                while (received < numBytes
+                        && (count = in.read(buffer, 0, (int) Math.min(buffer.length, numBytes - received))) > 0) {
+                    crc.update(buffer, 0, count);
+                    writer.write(ByteBuffer.wrap(buffer, 0, count));
+                    received += count;
+                }
+            }
+            if (received < numBytes)
+                throw new EOFException(String.format("Received %d of %d bytes for %s", received, numBytes, filename));
+            if (in.readInt() != (int) crc.getValue())
+                throw new IOException(String.format("%s failed its checksum", filename));
+            Path manifestFile = ChunkStore.newTemporaryPath();
+            VersionIndex.add(filename, manifestFile, writer.finish(manifestFile));
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /*
+     * Body of a re-replication from sendReplica: the manifest of the version,
+     * then the chunks the receiver said it was missing, each as its hash and
+     * bytes. Every chunk is checked against its hash and the manifest's
+     * checksum before it is stored. Stores it as a new version of filename
+     * with the sender's stamp, unless that version is already here. hold
+     * names the references missingChunks took for the chunks not sent.
+     */
+    static void receiveReplica(String filename, long stamp, String hold, InputStream body) throws IOException {
+        List<String> held = hold == null ? null : holds.remove(hold);
+        List<String> present = held == null ? new ArrayList<>() : new ArrayList<>(held);
+        try {
+            receiveReplica(filename, stamp, present, new DataInputStream(body));
+        } finally {
+            // Whatever the new version did not take over
+            if (!present.isEmpty())
+                ChunkStore.release(new Manifest(0, present, new ArrayList<>(), new ArrayList<>()));
+        }
+    }
+
+    private static void receiveReplica(String filename, long stamp, List<String> present, DataInputStream in)
+            throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        Manifest manifest = Manifest.parse(bytes);
+        String digest = manifest.digest();
+        // Versions from before a delete stay deleted
+        if (stamp <= VersionIndex.getTombstone(filename)) {
+            in.transferTo(OutputStream.nullOutputStream());
+            return;
+        }
+        for (Version version : VersionIndex.get(filename).versions) {
+            if (version.stamp == stamp && version.digest.equals(digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+                return;
+            }
+        }
+        HashMap<String, Integer> lengths = new HashMap<>();
+        HashMap<String, Integer> crcs = new HashMap<>();
+        for (int i = 0; i < manifest.hashes.size(); i++) {
+            lengths.put(manifest.hashes.get(i), manifest.lengths.get(i));
+            crcs.put(manifest.hashes.get(i), manifest.crcs.get(i));
+        }
+
+        // References are taken as chunks arrive, the rest were held by missingChunks or must be here
+        List<String> retained = new ArrayList<>();
+        try {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String hash = in.readUTF();
+                Integer length = lengths.get(hash);
+                if (length == null)
+                    throw new IOException(String.format("Chunk %s is not part of %s", hash, filename));
+                byte[] data = new byte[length];
+                in.readFully(data);
+                Integer crc = crcs.get(hash);
+                if ((crc != null && Crc32c.of(data, 0, length) != crc)
+                        || !ChunkStore.sha256(data, 0, length).equals(hash))
+                    throw new IOException(String.format("Chunk %s of %s is corrupt", hash, filename));
+                ChunkStore.retain(hash, data, 0, length);
+                retained.add(hash);
+            }
+            List<String> pending = new ArrayList<>(retained);
+            for (String hash : manifest.hashes) {
+                if (!pending.remove(hash)) {
+                    if (!present.remove(hash))
+                        ChunkStore.retain(hash, null, 0, 0);
+                    retained.add(hash);
+                }
+            }
+            if (!manifest.hasChecksums())
+                manifest = manifest.withChecksums();
+            Path manifestFile = ChunkStore.newTemporaryPath();
+            manifest.write(manifestFile);
+            if (VersionIndex.addReplica(filename, manifestFile, manifest, stamp) == null) {
+                // Another node sent it while this copy was in flight
+                Files.deleteIfExists(manifestFile);
+                ChunkStore.release(new Manifest(0, retained, new ArrayList<>(), new ArrayList<>()));
+            }
+        } catch (IOException e) {
+            ChunkStore.release(new Manifest(0, retained, new ArrayList<>(), new ArrayList<>()));
+            throw e;
+        }
+    }
+
+    /*
+     * Re-replicates a version of filename to ip, sending only the chunks ip
+     * does not hold yet. Returns the bytes of chunk data sent.
+     */
+    static long sendReplica(String ip, String filename, Version version) throws IOException {
+        Manifest manifest = Manifest.read(VersionIndex.getManifestPath(filename, version));
+        byte[] bytes = manifest.toBytes();
+        Transport.Call query = Transport.open(ip, String.format("%s %s", FailureReplicaReceiver.MISSING, filename));
+        query.write(ByteBuffer.wrap(bytes));
+        String reply = query.finish().trim();
+        int space = reply.indexOf(' ');
+        String hold = space < 0 ? reply : reply.substring(0, space);
+        BitSet missing = BitSet.valueOf(Base64.getDecoder().decode(space < 0 ? "" : reply.substring(space + 1)));
+        LinkedHashSet<String> send = new LinkedHashSet<>();
+        long sent = 0;
+        for (int i = missing.nextSetBit(0); i >= 0 && i < manifest.hashes.size(); i = missing.nextSetBit(i + 1)) {
+            if (send.add(manifest.hashes.get(i)))
+                sent += manifest.lengths.get(i);
+        }
+
+        Transport.Call call = Transport.open(ip,
+                String.format("%s %s %d %s", FailureReplicaReceiver.FILE, filename, version.stamp, hold));
+        try {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 2 + bytes.length);
+            header.putInt(bytes.length).put(bytes).putInt(send.size()).flip();
+            call.write(header);
+            for (String hash : send) {
+                ByteArrayOutputStream name = new ByteArrayOutputStream();
+                new DataOutputStream(name).writeUTF(hash);
+                call.write(ByteBuffer.wrap(name.toByteArray()));
+                try (FileChannel in = FileChannel.open(ChunkStore.getChunkPath(hash))) {
+                    call.write(in);
+                }
+            }
+        } catch (IOException e) {
+            call.cancel();
+            throw e;
+        }
+        call.finish();
+        Server.writeToLog(String.format("Re-replicated %s to %s: sent %d of %d chunks", filename, ip, send.size(),
+                manifest.hashes.size()));
+        return sent;
+    }
+
+    /*
+     * Transport handler for "re-replicate-missing <filename>" with a manifest
+     * as the body, replies with a hold and a bitmap over its entries of the
+     * chunks this node lacks, which stays small for manifests of any size.
+     * The chunks it has are referenced under the hold until the replica
+     * arrives, so a delete meanwhile can not collect them, and given back
+     * after HOLD_TTL if it never does.
+     */
+    static String missingChunks(String peer, String[] args, InputStream body) throws IOException {
+        Manifest manifest = Manifest.parse(body.readAllBytes());
+        BitSet missing = new BitSet(manifest.hashes.size());
+        List<String> present = new ArrayList<>();
+        for (int i = 0; i < manifest.hashes.size(); i++) {
+            if (ChunkStore.retainIfPresent(manifest.hashes.get(i)))
+                present.add(manifest.hashes.get(i));
+            else
+                missing.set(i);
+        }
+        String hold = String.format("%d-%d", Gossip.getIncarnation(), holdIds.incrementAndGet());
+        holds.put(hold, present);
+        ProtocolTimer.schedule(() -> {
+            List<String> expired = holds.remove(hold);
+            if (expired != null)
+                ChunkStore.release(new Manifest(0, expired, new ArrayList<>(), new ArrayList<>()));
+        }, HOLD_TTL);
+        return String.format("%s %s", hold, Base64.getEncoder().encodeToString(missing.toByteArray()));
+    }
+
+    /*
+     * Transport handler for "chain-put <txn> <filename> <rest of chain>" from
+     * the previous replica, replies with the number of replicas that staged it
+     */
+    static String receiveChainPut(String peer, String[] args, InputStream body) throws IOException {
+        List<String> rest = Arrays.asList(args).subList(3, args.length);
+        int persisted = receiveChainFile(args[1], args[2], Channels.newChannel(body), rest, true);
+        Server.writeToLog(String.format("chain-put: staged %s for %s from %s", args[2], args[1], peer));
+        return Integer.toString(persisted);
+    }
+
+    /*
+     * Transport handlers for the head's decision on a staged put:
+     * "chain-commit <txn> <filename> <stamp>" and "chain-abort <txn>"
+     */
+    static String commitChainPut(String peer, String[] args, InputStream body) throws IOException {
+        return commitStaged(args[1], args[2], Long.parseLong(args[3])) ? "committed" : "not staged";
+    }
+
+    static String abortChainPut(String peer, String[] args, InputStream body) throws IOException {
+        return abortStaged(args[1]) ? "aborted" : "not staged";
+    }
+
+    /*
+     * Receives a put from upstream and pipelines it down the replica chain:
+     * every buffer read is fed to the ChunkStore (when store is set) and
+     * forwarded to the next reachable replica over the peer transport before
+     * the next one is read, then the version's manifest is staged under txn.
+     * The CRC32C that follows the bytes is forwarded too, and every replica
+     * checks it against the bytes it received before staging them.
+     * Returns how many replicas from here to the tail staged the file.
+     * Nothing becomes visible until the head commits txn.
+     */
+    static int receiveChainFile(String txn, String filename, ReadableByteChannel source, List<String> chain,
+            boolean store) throws IOException {
+        Transport.Call next = null;
+        ArrayList<String> remaining = new ArrayList<>(chain);
+        while (next == null && !remaining.isEmpty()) {
+            String ip = remaining.remove(0);
+            try {
+                next = Transport.open(ip,
+                        String.format("chain-put %s %s %s", txn, filename, String.join(" ", remaining)).trim());
+            } catch (IOException e) {
+                Server.writeToLog(String.format("Skipping unreachable replica %s for %s", ip, filename));
+            }
+        }
+
+        ByteBuffer buffer = directBuffers.get();
+        buffer.clear().limit(Long.BYTES);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) < 0)
+                throw new EOFException(String.format("No length for %s", filename));
+        }
+        buffer.flip();
+        long numBytes = buffer.getLong(0);
+        next = forward(next, buffer, filename);
+
+        ChunkStore.Writer writer = store ? new ChunkStore.Writer() : null;
+        CRC32C crc = new CRC32C();
+        long received = 0;
+        try {
+            int count;
+            buffer.clear().limit((int) Math.min(buffer.capacity(), numBytes));
+            while (received < numBytes && (count = source.read(buffer)) > 0) {
+                received += count;
+                buffer.flip();
+                crc.update(buffer.duplicate());
+                if (writer != null)
+                    writer.write(buffer.duplicate());
+                next = forward(next, buffer, filename);
+                buffer.clear().limit((int) Math.min(buffer.capacity(), numBytes - received));
+            }
+            if (received < numBytes)
+                throw new EOFException(String.format("Received %d of %d bytes for %s", received, numBytes, filename));
+            buffer.clear().limit(Integer.BYTES);
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer) < 0)
+                    throw new EOFException(String.format("No checksum for %s", filename));
+            }
+            buffer.flip();
+            if (buffer.getInt(0) != (int) crc.getValue())
+                throw new IOException(String.format("%s failed its checksum", filename));
+            next = forward(next, buffer, filename);
+            if (writer != null)
+                writer.finish(getStagingPath(txn));
+        } catch (IOException e) {
+            if (writer != null)
+                writer.abort();
+            if (next != null)
+                next.cancel();
+            throw e;
+        }
+
+        // Acknowledgements flow back from the tail of the chain
+        int persisted = store ? 1 : 0;
+        if (next != null) {
+            try {
+                persisted += Integer.parseInt(next.finish());
+            } catch (IOException | NumberFormatException e) {
+                Server.writeToLog(String.format("No ACK from downstream replica for %s: %s", filename, e.getMessage()));
+            }
+        }
+        return persisted;
+    }
+
+    /*
+     * Sends a chunk down the chain. Returns null once the downstream replica is
+     * lost, the rest of the chain then just misses this version.
+     */
+    private static Transport.Call forward(Transport.Call next, ByteBuffer chunk, String filename) {
+        if (next == null)
+            return null;
+        try {
+            next.write(chunk.duplicate());
+            return next;
+        } catch (IOException e) {
+            Server.writeToLog(String.format("Lost downstream replica for %s: %s", filename, e.getMessage()));
+            next.cancel();
+            return null;
         }
     }
 
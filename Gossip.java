@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Delta based dissemination of membership changes, in the style of SWIM.
+ * A member whose probes go unanswered is first gossiped as SUSPECT and only
+ * declared FAILED if it does not refute within SUSPECT_TIMEOUT.
+ * Instead of broadcasting the whole member list on every join or failure,
+ * each change becomes an incarnation-numbered event that is piggybacked on
+ * the pings and ACKs the failure detector already sends. Every event is
+ * retransmitted about RETRANSMIT_MULTIPLIER * log(N) times, which is enough
+ * for it to reach the whole group with high probability, and each packet
+ * carries at most MAX_EVENTS_PER_PACKET events.
+ */
+class Gossip {
+    enum Type { ALIVE, SUSPECT, FAILED }
+
+    static final int RETRANSMIT_MULTIPLIER = 3;
+    static final int MAX_EVENTS_PER_PACKET = 8;
+    // How long a suspected member has to refute before it is declared failed
+    static final int SUSPECT_TIMEOUT = Integer.getInteger("sdfs.suspectTimeout", 3000);
+    // Well under SocketHelper's receive buffer so piggybacked events never get truncated
+    static final int MAX_PACKET_BYTES = 1024;
+    static final String EVENT_DELIMITER = ";";
+    static final String FIELD_DELIMITER = ",";
+    static final String INCARNATION_DELIMITER = "|";
+
+    /*
+     * Incarnations start at the process start time so a node that restarts
+     * overrides the FAILED events gossiped about its previous run
+     */
+    private static long incarnation = System.currentTimeMillis();
+    // Latest incarnation heard of every member, including ones that have failed
+    private static final HashMap<String, Long> incarnations = new HashMap<>();
+    // Members currently suspected, mapped to the incarnation they are suspected at
+    private static final HashMap<String, Long> suspects = new HashMap<>();
+    // Events still being piggybacked, mapped to how many times they have been sent
+    private static final LinkedHashMap<String, Integer> events = new LinkedHashMap<>();
+
+    static synchronized long getIncarnation() {
+        return incarnation;
+    }
+
+    private static String encode(Type type, String ip, long inc) {
+        return String.join(FIELD_DELIMITER, type.name(), ip, Long.toString(inc));
+    }
+
+    private static void enqueue(Type type, String ip, long inc) {
+        // A newer event about a member replaces anything still queued for it
+        events.keySet().removeIf(event -> event.split(FIELD_DELIMITER)[1].equals(ip));
+        events.put(encode(type, ip, inc), 0);
+    }
+
+    /*
+     * Direct evidence that ip is alive at incarnation inc: it pinged, ACKed or
+     * asked to join. If we already declared that incarnation failed we keep
+     * gossiping the failure so the node hears it and refutes it.
+     */
+    static synchronized void alive(String ip, long inc) throws IOException {
+        if (ip.equals(Server.ip))
+            return;
+        Long known = incarnations.get(ip);
+        if (known == null || inc > known) {
+            incarnations.put(ip, inc);
+            suspects.remove(ip);
+            if (!Server.group.contains(ip))
+                Server.addToMemberList(ip);
+            enqueue(Type.ALIVE, ip, inc);
+        } else if (!Server.group.contains(ip)) {
+            enqueue(Type.FAILED, ip, known);
+        }
+    }
+
+    /*
+     * This node's direct and indirect probes of ip both went unanswered
+     */
+    static synchronized void suspect(String ip) {
+        suspect(ip, incarnations.getOrDefault(ip, 0L));
+    }
+
+    private static void suspect(String ip, long inc) {
+        Long suspected = suspects.get(ip);
+        if (suspected != null && suspected >= inc)
+            return;
+        Server.writeToLog(String.format("Suspecting %s at incarnation %d", ip, inc));
+        incarnations.put(ip, inc);
+        suspects.put(ip, inc);
+        enqueue(Type.SUSPECT, ip, inc);
+        ProtocolTimer.schedule(() -> confirm(ip, inc), SUSPECT_TIMEOUT);
+    }
+
+    /*
+     * Declares ip failed if it never refuted the suspicion raised at inc
+     */
+    private static synchronized void confirm(String ip, long inc) throws IOException {
+        Long suspected = suspects.get(ip);
+        if (suspected != null && suspected == inc && Server.group.contains(ip)) {
+            Server.writeToLog(String.format("detected failure at: %s", ip));
+            failed(ip, inc);
+        }
+    }
+
+    private static void failed(String ip, long inc) throws IOException {
+        incarnations.put(ip, inc);
+        suspects.remove(ip);
+        Server.removeFromMemberList(ip);
+        enqueue(Type.FAILED, ip, inc);
+    }
+
+    static synchronized boolean isSuspected(String ip) {
+        return suspects.containsKey(ip);
+    }
+
+    /*
+     * Handles a ping or ACK payload from senderIP: "<incarnation>|<events>"
+     */
+    static void receive(String senderIP, String payload) throws IOException {
+        int split = payload.indexOf(INCARNATION_DELIMITER);
+        try {
+            alive(senderIP, Long.parseLong(split == -1 ? payload : payload.substring(0, split)));
+        } catch (NumberFormatException e) {
+            Server.writeToLog(String.format("Ignoring malformed gossip packet from %s", senderIP));
+            return;
+        }
+        if (split != -1)
+            apply(payload.substring(split + 1));
+    }
+
+    /*
+     * Applies the events piggybacked on a packet. Events that change our view
+     * are queued again so we help spread them; stale ones are dropped.
+     */
+    static synchronized void apply(String data) throws IOException {
+        for (String event : data.split(EVENT_DELIMITER)) {
+            String[] fields = event.trim().split(FIELD_DELIMITER);
+            if (fields.length != 3)
+                continue;
+            Type type;
+            long inc;
+            try {
+                type = Type.valueOf(fields[0]);
+                inc = Long.parseLong(fields[2]);
+            } catch (IllegalArgumentException e) {
+                Server.writeToLog(String.format("Ignoring malformed gossip event: %s", event));
+                continue;
+            }
+            String ip = fields[1];
+
+            if (ip.equals(Server.ip)) {
+                // Someone suspects or declared us failed: refute with a higher incarnation
+                if (type != Type.ALIVE && inc >= incarnation) {
+                    incarnation = inc + 1;
+                    Server.writeToLog(String.format("Refuting failure with incarnation %d", incarnation));
+                    enqueue(Type.ALIVE, ip, incarnation);
+                }
+                continue;
+            }
+
+            Long known = incarnations.get(ip);
+            switch (type) {
+            case ALIVE:
+                if (known == null || inc > known) {
+                    incarnations.put(ip, inc);
+                    suspects.remove(ip);
+                    if (!Server.group.contains(ip))
+                        Server.addToMemberList(ip);
+                    enqueue(Type.ALIVE, ip, inc);
+                }
+                break;
+            case SUSPECT:
+                if ((known == null || inc >= known) && Server.group.contains(ip))
+                    suspect(ip, inc);
+                break;
+            case FAILED:
+                if ((known == null || inc >= known) && Server.group.contains(ip))
+                    failed(ip, inc);
+                break;
+            }
+        }
+    }
+
+    /*
+     * Payload for an outgoing ping or ACK: our incarnation followed by the least
+     * sent events that fit in one packet. Events that have been sent often
+     * enough for the current group size are retired.
+     */
+    static synchronized String piggyback() {
+        int limit = RETRANSMIT_MULTIPLIER * (int) Math.ceil(Math.log(Server.group.size() + 1) / Math.log(2));
+        ArrayList<String> candidates = new ArrayList<>(events.keySet());
+        candidates.sort((a, b) -> Integer.compare(events.get(a), events.get(b)));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(incarnation).append(INCARNATION_DELIMITER);
+        int start = sb.length();
+        int count = 0;
+        for (String event : candidates) {
+            if (count == MAX_EVENTS_PER_PACKET || sb.length() + event.length() + 1 > MAX_PACKET_BYTES)
+                break;
+            if (sb.length() > start)
+                sb.append(EVENT_DELIMITER);
+            sb.append(event);
+            count++;
+            int sent = events.get(event) + 1;
+            if (sent >= limit)
+                events.remove(event);
+            else
+                events.put(event, sent);
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Full membership with incarnations for a node that just joined, split
+     * into packets of at most MAX_PACKET_BYTES. Each packet starts with
+     * "<index>/<total>" so the joiner knows when it has seen all of them.
+     */
+    static synchronized List<String> snapshot() {
+        ArrayList<String> chunks = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (String member : Server.group) {
+            long inc = member.equals(Server.ip) ? incarnation : incarnations.getOrDefault(member, 0L);
+            String event = encode(Type.ALIVE, member, inc);
+            if (sb.length() > 0 && sb.length() + event.length() + 1 > MAX_PACKET_BYTES) {
+                chunks.add(sb.toString());
+                sb.setLength(0);
+            }
+            if (sb.length() > 0)
+                sb.append(EVENT_DELIMITER);
+            sb.append(event);
+        }
+        chunks.add(sb.toString());
+
+        ArrayList<String> packets = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++)
+            packets.add(String.format("%d/%d%s%s", i + 1, chunks.size(), EVENT_DELIMITER, chunks.get(i)));
+        return packets;
+    }
+
+    /*
+     * Applies one snapshot packet and returns true if it was the last one
+     */
+    static boolean applySnapshot(String packet) throws IOException {
+        int split = packet.indexOf(EVENT_DELIMITER);
+        String[] position = (split == -1 ? packet : packet.substring(0, split)).split("/");
+        if (split != -1)
+            apply(packet.substring(split + 1));
+        return position.length != 2 || position[0].equals(position[1]);
+    }
+}
@@ -0,0 +1,95 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring used to place SDFS files on members. Every member owns
+ * a number of virtual points on a 64-bit ring and a file is replicated on the
+ * first distinct members clockwise from its hash, so a join or leave only
+ * moves the files next to the points that changed (roughly 1/N of the data).
+ */
+class HashRing {
+    static final int VIRTUAL_NODES = Integer.getInteger("sdfs.virtualNodes", 128);
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final List<String> members;
+    private final long[] points;
+    private final String[] owners;
+
+    HashRing(List<String> members) {
+        this(members, VIRTUAL_NODES);
+    }
+
+    HashRing(List<String> members, int virtualNodes) {
+        this.members = new ArrayList<>(members);
+        // Members are inserted in list order so every node resolves point collisions the same way
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String member : this.members)
+            for (int i = 0; i < virtualNodes; i++)
+                ring.putIfAbsent(hash(String.format("%s#%d", member, i)), member);
+
+        points = new long[ring.size()];
+        owners = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> entry : ring.entrySet()) {
+            points[i] = entry.getKey();
+            owners[i++] = entry.getValue();
+        }
+    }
+
+    /*
+     * 64-bit FNV-1a followed by the splitmix64 finalizer, which spreads the
+     * short and similar keys we hash (ips, file names) across the whole ring
+     */
+    static long hash(String key) {
+        long h = FNV_OFFSET;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= FNV_PRIME;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    List<String> getMembers() {
+        return members;
+    }
+
+    /*
+     * Returns up to count distinct members responsible for key, primary first
+     */
+    List<String> getReplicas(String key, int count) {
+        ArrayList<String> replicas = new ArrayList<>();
+        if (points.length == 0)
+            return replicas;
+        count = Math.min(count, members.size());
+        int start = firstPointAtOrAfter(hash(key));
+        for (int i = 0; i < points.length && replicas.size() < count; i++) {
+            String owner = owners[(start + i) % points.length];
+            if (!replicas.contains(owner))
+                replicas.add(owner);
+        }
+        return replicas;
+    }
+
+    String getPrimary(String key) {
+        return points.length == 0 ? null : owners[firstPointAtOrAfter(hash(key)) % points.length];
+    }
+
+    private int firstPointAtOrAfter(long h) {
+        int lo = 0;
+        int hi = points.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (points[mid] < h)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+}
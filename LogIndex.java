@@ -0,0 +1,313 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+
+/**
+ * In-process search over the server log, replacing the per-request fork of
+ * grep. The AsyncLogger writer checkpoints the byte offset and timestamp of
+ * every INDEX_INTERVAL-th entry as it appends, so a query with a time range
+ * seeks straight to the right part of the log. Searches memory-map the log a
+ * window at a time and stream matching lines to the caller as they are found,
+ * stopping as soon as the query's limit is reached.
+ */
+class LogIndex {
+    static final int INDEX_INTERVAL = Integer.getInteger("sdfs.logIndexInterval", 1024);
+    static final int MAP_WINDOW = 64 << 20;
+    // Lines are copied out of the mapping a block at a time, longer lines are skipped
+    static final int BLOCK = 1 << 20;
+    // Every log line starts with "yyyy/MM/dd-HH:mm:ss.SSS: ", which sorts the same as the time it stands for
+    static final int TIMESTAMP_LENGTH = 23;
+    private static final int OUTPUT_BUFFER = 64 * 1024;
+
+    private final Path path;
+    // Checkpoints, only appended to by the writer thread
+    private long[] offsets = new long[256];
+    private String[] stamps = new String[256];
+    private int size;
+    // Bytes of complete lines in the file, searches never read past it
+    private volatile long length;
+
+    LogIndex(Path path) {
+        this.path = path;
+    }
+
+    synchronized void checkpoint(long offset, String stamp) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            stamps = Arrays.copyOf(stamps, size * 2);
+        }
+        offsets[size] = offset;
+        stamps[size] = stamp;
+        size++;
+    }
+
+    void setLength(long length) {
+        this.length = length;
+    }
+
+    synchronized int getCheckpoints() {
+        return size;
+    }
+
+    /*
+     * First checkpoint whose timestamp, cut to the length of bound, sorts after
+     * bound (after == true) or not before it (after == false)
+     */
+    private int search(String bound, boolean after) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            String stamp = stamps[mid];
+            int cmp = stamp.substring(0, Math.min(stamp.length(), bound.length())).compareTo(bound);
+            if (after ? cmp <= 0 : cmp < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /*
+     * Streams the lines matching query to out and returns how many were sent.
+     * Entries are timestamped by the threads that log them, so they are only
+     * roughly in time order; the scan starts one checkpoint early and ends one
+     * checkpoint late to pick up stragglers.
+     */
+    long search(LogQuery query, OutputStream out) throws IOException {
+        long start = 0;
+        long stop = length;
+        synchronized (this) {
+            if (query.from != null) {
+                int idx = search(query.from, false) - 1;
+                if (idx > 0)
+                    start = offsets[idx - 1];
+            }
+            if (query.to != null) {
+                int idx = search(query.to, true) + 1;
+                if (idx < size)
+                    stop = Math.min(stop, offsets[idx]);
+            }
+        }
+
+        Scan scan = new Scan(query, out);
+        byte[] block = new byte[BLOCK];
+        // Bytes at the start of block that belong to a line the previous block cut off
+        int carry = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer window = null;
+            long windowStart = start;
+            long pos = start;
+            while (pos < stop) {
+                if (window == null || pos == windowStart + window.limit()) {
+                    windowStart = pos;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, stop - pos));
+                }
+                int n = (int) Math.min(block.length - carry, windowStart + window.limit() - pos);
+                window.get((int) (pos - windowStart), block, carry, n);
+                pos += n;
+                int end = carry + n;
+                int lineStart = scan.lines(block, end);
+                if (lineStart < 0)
+                    break;
+                carry = end - lineStart;
+                if (carry == block.length)
+                    carry = 0; // A single line longer than a block, skip it
+                else
+                    System.arraycopy(block, lineStart, block, 0, carry);
+            }
+        }
+        scan.out.flush();
+        return scan.sent;
+    }
+
+    /*
+     * State of one search as it goes through the log a block at a time
+     */
+    private static final class Scan {
+        final LogQuery query;
+        final OutputStream out;
+        final byte[] from;
+        final byte[] to;
+        final byte[] literal;
+        // Horspool shift for each byte value, how far the literal can move past a mismatch
+        final int[] shift;
+        final Matcher matcher;
+        final AsciiView view = new AsciiView();
+        boolean inRange;
+        long skipped;
+        long sent;
+
+        Scan(LogQuery query, OutputStream out) {
+            this.query = query;
+            this.out = new BufferedOutputStream(out, OUTPUT_BUFFER);
+            from = query.from == null ? null : query.from.getBytes(StandardCharsets.US_ASCII);
+            to = query.to == null ? null : query.to.getBytes(StandardCharsets.US_ASCII);
+            literal = query.literal();
+            shift = literal == null ? null : shifts(literal);
+            matcher = literal == null ? query.pattern.matcher(view) : null;
+            inRange = from == null;
+        }
+
+        /*
+         * Handles the complete lines in block[0, end). Returns where the last,
+         * incomplete line starts, or -1 once the limit has been reached.
+         */
+        int lines(byte[] block, int end) throws IOException {
+            if (literal != null && from == null && to == null)
+                return literalLines(block, end);
+            view.reset(block);
+            int lineStart = 0;
+            while (true) {
+                // Find the end of the line, noting whether it is plain ASCII on the way
+                int i = lineStart;
+                int bits = 0;
+                while (i < end && block[i] != '\n')
+                    bits |= block[i++];
+                if (i == end)
+                    return lineStart;
+
+                // Continuation lines such as stack traces belong to the entry above them
+                if (hasTimestamp(block, lineStart, i))
+                    inRange = (from == null || compare(block, lineStart, from) >= 0)
+                            && (to == null || compare(block, lineStart, to) <= 0);
+                if (inRange && matches(block, lineStart, i, bits >= 0) && emit(block, lineStart, i))
+                    return -1;
+                lineStart = i + 1;
+            }
+        }
+
+        /*
+         * Without a time range a literal pattern is searched for across the
+         * whole block, only lines that contain it are looked at
+         */
+        private int literalLines(byte[] block, int end) throws IOException {
+            int lineStart = 0;
+            while (true) {
+                int hit = indexOf(block, lineStart, end, literal, shift);
+                if (hit == -1)
+                    break;
+                int matchStart = hit;
+                while (matchStart > lineStart && block[matchStart - 1] != '\n')
+                    matchStart--;
+                int lineEnd = hit + literal.length;
+                while (lineEnd < end && block[lineEnd] != '\n')
+                    lineEnd++;
+                if (lineEnd == end)
+                    return matchStart;
+                if (emit(block, matchStart, lineEnd))
+                    return -1;
+                lineStart = lineEnd + 1;
+            }
+            for (int i = end - 1; i >= lineStart; i--) {
+                if (block[i] == '\n')
+                    return i + 1;
+            }
+            return lineStart;
+        }
+
+        private boolean matches(byte[] block, int start, int end, boolean ascii) {
+            if (literal != null)
+                return indexOf(block, start, end, literal, shift) != -1;
+            // Plain ASCII lines are matched in place, anything else is decoded first
+            if (ascii)
+                return matcher.reset(view).region(start, end).find();
+            return matcher.reset(new String(block, start, end - start, StandardCharsets.UTF_8)).find();
+        }
+
+        /*
+         * Sends one matching line, returns true once the limit has been reached
+         */
+        private boolean emit(byte[] block, int start, int end) throws IOException {
+            if (skipped < query.offset) {
+                skipped++;
+                return false;
+            }
+            out.write(block, start, end - start);
+            out.write('\n');
+            // Get the first result to the client right away
+            if (++sent == 1)
+                out.flush();
+            return sent == query.limit;
+        }
+    }
+
+    /*
+     * Bytes of an ASCII line seen as characters without decoding them
+     */
+    private static final class AsciiView implements CharSequence {
+        private byte[] bytes = new byte[0];
+
+        void reset(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int length() {
+            return bytes.length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) bytes[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(bytes, start, end - start, StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static boolean hasTimestamp(byte[] block, int start, int end) {
+        return end - start > TIMESTAMP_LENGTH && block[start + 4] == '/' && block[start + 10] == '-'
+                && block[start + TIMESTAMP_LENGTH] == ':';
+    }
+
+    /*
+     * Compares the timestamp of the line at start with bound, up to the length
+     * of bound, so a bound of "2018/11/30-14:05" covers that whole minute
+     */
+    private static int compare(byte[] block, int start, byte[] bound) {
+        for (int i = 0; i < bound.length; i++) {
+            if (block[start + i] != bound[i])
+                return block[start + i] - bound[i];
+        }
+        return 0;
+    }
+
+    private static int[] shifts(byte[] literal) {
+        int[] shift = new int[256];
+        Arrays.fill(shift, literal.length);
+        for (int i = 0; i < literal.length - 1; i++)
+            shift[literal[i] & 0xff] = literal.length - 1 - i;
+        return shift;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte[] literal, int[] shift) {
+        int last = literal.length - 1;
+        if (last < 0)
+            return from;
+        byte tail = literal[last];
+        for (int i = from; i <= to - literal.length; i += shift[bytes[i + last] & 0xff]) {
+            if (bytes[i + last] != tail)
+                continue;
+            int j = last - 1;
+            while (j >= 0 && bytes[i + j] == literal[j])
+                j--;
+            if (j < 0)
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,96 @@
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+/**
+ * Parsed grep command: grep [-i] [-from time] [-to time] [-offset n] [-limit n] pattern
+ * Times are either log timestamps (yyyy/MM/dd-HH:mm:ss.SSS, or any prefix of
+ * one) or epoch milliseconds. The pattern is a Java regex and is the rest of
+ * the line, so it may contain spaces.
+ */
+class LogQuery {
+    private static final String REGEX_METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    final Pattern pattern;
+    final String from;
+    final String to;
+    final long offset;
+    final long limit;
+    private final boolean ignoreCase;
+
+    private LogQuery(String regex, boolean ignoreCase, String from, String to, long offset, long limit) {
+        this.pattern = Pattern.compile(regex, ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+        this.ignoreCase = ignoreCase;
+        this.from = from;
+        this.to = to;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    static LogQuery parse(String args) {
+        String rest = args.trim();
+        boolean ignoreCase = false;
+        String from = null, to = null;
+        long offset = 0, limit = Long.MAX_VALUE;
+        while (rest.startsWith("-")) {
+            int split = rest.indexOf(' ');
+            String option = split == -1 ? rest : rest.substring(0, split);
+            rest = split == -1 ? "" : rest.substring(split + 1).trim();
+            if (option.equals("-i")) {
+                ignoreCase = true;
+                continue;
+            }
+            split = rest.indexOf(' ');
+            if (split == -1)
+                throw new IllegalArgumentException(String.format("%s needs a value and a pattern", option));
+            String value = rest.substring(0, split);
+            rest = rest.substring(split + 1).trim();
+            switch (option) {
+            case "-from":
+                from = parseTime(value);
+                break;
+            case "-to":
+                to = parseTime(value);
+                break;
+            case "-offset":
+                offset = Long.parseLong(value);
+                break;
+            case "-limit":
+                limit = Long.parseLong(value);
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("unknown option %s", option));
+            }
+        }
+        // Patterns used to go through the shell, so accept them quoted
+        if (rest.length() >= 2 && (rest.startsWith("\"") && rest.endsWith("\"") || rest.startsWith("'") && rest.endsWith("'")))
+            rest = rest.substring(1, rest.length() - 1);
+        if (rest.isEmpty())
+            throw new IllegalArgumentException("missing pattern");
+        if (offset < 0 || limit <= 0)
+            throw new IllegalArgumentException("offset must be >= 0 and limit > 0");
+        return new LogQuery(rest, ignoreCase, from, to, offset, limit);
+    }
+
+    private static String parseTime(String value) {
+        if (value.chars().allMatch(Character::isDigit) && value.length() > 8)
+            return Server.formatDate(Long.parseLong(value));
+        if (value.length() > LogIndex.TIMESTAMP_LENGTH || !value.chars().allMatch(c -> c < 128))
+            throw new IllegalArgumentException(String.format("bad time %s", value));
+        return value;
+    }
+
+    /*
+     * Patterns without regex syntax are matched directly on the bytes of each
+     * line, which saves decoding every line into a String
+     */
+    byte[] literal() {
+        String regex = pattern.pattern();
+        if (ignoreCase || regex.indexOf('\n') != -1)
+            return null;
+        for (int i = 0; i < regex.length(); i++) {
+            if (REGEX_METACHARACTERS.indexOf(regex.charAt(i)) != -1)
+                return null;
+        }
+        return regex.getBytes(StandardCharsets.UTF_8);
+    }
+}
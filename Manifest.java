@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One version of an SDFS file: its size and its chunks in order. Stored as
+ * text, a header line followed by "<sha-256> <length> <crc32c>" per chunk.
+ * Manifests from before checksums lack the last field, their crcs are null.
+ */
+final class Manifest {
+    static final String HEADER = "sdfs-manifest 1";
+
+    final long size;
+    final List<String> hashes;
+    final List<Integer> lengths;
+    final List<Integer> crcs;
+
+    Manifest(long size, List<String> hashes, List<Integer> lengths, List<Integer> crcs) {
+        this.size = size;
+        this.hashes = hashes;
+        this.lengths = lengths;
+        this.crcs = crcs;
+    }
+
+    boolean hasChecksums() {
+        return !crcs.contains(null);
+    }
+
+    /*
+     * The same manifest with the checksums it lacks computed from the chunks
+     */
+    Manifest withChecksums() throws IOException {
+        List<Integer> filled = new ArrayList<>(crcs);
+        for (int i = 0; i < hashes.size(); i++) {
+            if (filled.get(i) == null) {
+                byte[] data = Files.readAllBytes(ChunkStore.getChunkPath(hashes.get(i)));
+                filled.set(i, Crc32c.of(data, 0, data.length));
+            }
+        }
+        return new Manifest(size, hashes, lengths, filled);
+    }
+
+    /*
+     * CRC32C of the whole version, from the chunk checksums alone
+     */
+    int checksum() throws IOException {
+        Manifest manifest = hasChecksums() ? this : withChecksums();
+        int crc = 0;
+        for (int i = 0; i < hashes.size(); i++)
+            crc = Crc32c.combine(crc, manifest.crcs.get(i), lengths.get(i));
+        return crc;
+    }
+
+    static Manifest read(Path path) throws IOException {
+        return parse(Files.readAllBytes(path));
+    }
+
+    static Manifest parse(byte[] bytes) throws IOException {
+        String[] lines = new String(bytes, StandardCharsets.US_ASCII).split("\n");
+        if (lines.length == 0 || !lines[0].startsWith(HEADER))
+            throw new IOException("Not a version manifest");
+        List<String> hashes = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        List<Integer> crcs = new ArrayList<>();
+        long size = 0;
+        for (int i = 1; i < lines.length; i++) {
+            String[] fields = lines[i].split(" ");
+            if (fields.length != 2 && fields.length != 3)
+                continue;
+            hashes.add(fields[0]);
+            lengths.add(Integer.parseInt(fields[1]));
+            crcs.add(fields.length == 3 ? Integer.parseUnsignedInt(fields[2], 16) : null);
+            size += lengths.get(lengths.size() - 1);
+        }
+        return new Manifest(size, hashes, lengths, crcs);
+    }
+
+    /*
+     * Identifies the content of the version, equal manifests mean equal
+     * bytes. Only the chunks count, so it is the same with or without
+     * checksums.
+     */
+    String digest() {
+        byte[] bytes = toBytes(false);
+        return ChunkStore.sha256(bytes, 0, bytes.length);
+    }
+
+    byte[] toBytes() {
+        return toBytes(true);
+    }
+
+    private byte[] toBytes(boolean checksums) {
+        StringBuilder sb = new StringBuilder(HEADER).append('\n');
+        for (int i = 0; i < hashes.size(); i++) {
+            sb.append(hashes.get(i)).append(' ').append(lengths.get(i));
+            if (checksums && crcs.get(i) != null)
+                sb.append(' ').append(String.format("%08x", crcs.get(i)));
+            sb.append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /*
+     * Written to a temporary file and moved into place so a crash never
+     * leaves half a manifest behind. The temporary file lives with the chunks
+     * so version listings never see it and load() cleans up after a crash.
+     */
+    void write(Path path) throws IOException {
+        Path tmp = ChunkStore.newTemporaryPath();
+        Files.write(tmp, toBytes());
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Immutable, versioned snapshot of the membership list. Server.group always
+ * points at the latest snapshot and is replaced atomically on every change,
+ * so readers never lock and never see a list that is being modified. Hot
+ * paths should read Server.group once and use that snapshot throughout.
+ */
+final class Membership implements Iterable<String> {
+    private static final CopyOnWriteArrayList<Consumer<Membership>> listeners = new CopyOnWriteArrayList<>();
+
+    private final long version;
+    // Sorted and free of duplicates, indexOf relies on it for binary search
+    private final String[] members;
+    private final List<String> view;
+
+    private Membership(long version, String[] members) {
+        this.version = version;
+        this.members = members;
+        this.view = Collections.unmodifiableList(Arrays.asList(members));
+    }
+
+    static Membership empty() {
+        return new Membership(0, new String[0]);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    int size() {
+        return members.length;
+    }
+
+    boolean isEmpty() {
+        return members.length == 0;
+    }
+
+    String get(int idx) {
+        return members[idx];
+    }
+
+    int indexOf(String ip) {
+        int idx = Arrays.binarySearch(members, ip);
+        return idx < 0 ? -1 : idx;
+    }
+
+    boolean contains(String ip) {
+        return indexOf(ip) != -1;
+    }
+
+    List<String> asList() {
+        return view;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return view.iterator();
+    }
+
+    @Override
+    public String toString() {
+        return view.toString();
+    }
+
+    /*
+     * Copy-on-write updates. They return this snapshot unchanged when there is
+     * nothing to do so callers can tell whether a new version was published.
+     */
+    Membership with(String ip) {
+        if (contains(ip))
+            return this;
+        String[] updated = Arrays.copyOf(members, members.length + 1);
+        updated[members.length] = ip;
+        Arrays.sort(updated);
+        return new Membership(version + 1, updated);
+    }
+
+    Membership without(String ip) {
+        int idx = indexOf(ip);
+        if (idx == -1)
+            return this;
+        String[] updated = new String[members.length - 1];
+        System.arraycopy(members, 0, updated, 0, idx);
+        System.arraycopy(members, idx + 1, updated, idx, members.length - idx - 1);
+        return new Membership(version + 1, updated);
+    }
+
+    static void addListener(Consumer<Membership> listener) {
+        listeners.add(listener);
+    }
+
+    void notifyListeners() {
+        for (Consumer<Membership> listener : listeners) {
+            try {
+                listener.accept(this);
+            } catch (RuntimeException e) {
+                Server.writeToLog(e);
+            }
+        }
+    }
+}
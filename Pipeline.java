@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+
+/**
+ * A Crane topology compiled once per job into a chain of sinks ending in
+ * the bolt's output. Every run of consecutive map actions is fused into one
+ * method handle, each action's result filtered straight into the next, so a
+ * tuple goes through it as a single call the JIT compiles and inlines as a
+ * whole, instead of a map lookup and a reflective invoke with a fresh
+ * argument array per action per tuple.
+ *
+ * The kind of stage follows the action's return type: String maps the
+ * tuple, boolean keeps it only if true, String[] replaces it by each of its
+ * elements in turn.
+ */
+final class Pipeline {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType MAP = MethodType.methodType(String.class, String.class);
+    private static final MethodType FILTER = MethodType.methodType(boolean.class, String.class);
+    private static final MethodType FLAT_MAP = MethodType.methodType(String[].class, String.class);
+
+    /*
+     * Receives the tuples coming out of a stage
+     */
+    interface Sink {
+        void accept(String tuple) throws IOException;
+    }
+
+    private Pipeline() {
+    }
+
+    /*
+     * The sink the first action of topology reads from, feeding out with
+     * what comes out of the last one
+     */
+    static Sink compile(String[] topology, Map<String, Method> actions, Sink out) {
+        Sink next = out;
+        // Maps after the current position, not yet wrapped in a sink
+        MethodHandle maps = null;
+        for (int i = topology.length - 1; i >= 0; i--) {
+            MethodHandle action = unreflect(topology[i], actions.get(topology[i]));
+            if (action.type().equals(MAP)) {
+                maps = maps == null ? action : MethodHandles.filterReturnValue(action, maps);
+                continue;
+            }
+            next = maps(maps, next);
+            maps = null;
+            next = action.type().equals(FILTER) ? filter(action, next) : flatMap(action, next);
+        }
+        return maps(maps, next);
+    }
+
+    private static MethodHandle unreflect(String name, Method action) {
+        if (action == null)
+            throw new IllegalArgumentException(String.format("Unknown crane action %s", name));
+        if (!Modifier.isStatic(action.getModifiers()))
+            throw new IllegalArgumentException(String.format("Crane action %s is not static", name));
+        MethodHandle handle;
+        try {
+            handle = LOOKUP.unreflect(action);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(String.format("Crane action %s is not accessible", name), e);
+        }
+        if (!handle.type().equals(MAP) && !handle.type().equals(FILTER) && !handle.type().equals(FLAT_MAP))
+            throw new IllegalArgumentException(String.format(
+                    "Crane action %s must take a String and return a String, boolean or String[]", name));
+        return handle;
+    }
+
+    private static Sink maps(MethodHandle maps, Sink next) {
+        if (maps == null)
+            return next;
+        return tuple -> {
+            String out;
+            try {
+                out = (String) maps.invokeExact(tuple);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+            next.accept(out);
+        };
+    }
+
+    private static Sink filter(MethodHandle filter, Sink next) {
+        return tuple -> {
+            boolean keep;
+            try {
+                keep = (boolean) filter.invokeExact(tuple);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+            if (keep)
+                next.accept(tuple);
+        };
+    }
+
+    private static Sink flatMap(MethodHandle flatMap, Sink next) {
+        return tuple -> {
+            String[] outs;
+            try {
+                outs = (String[]) flatMap.invokeExact(tuple);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+            for (String out : outs)
+                next.accept(out);
+        };
+    }
+
+    /*
+     * Actions are plain static methods, anything they throw that is not
+     * unchecked is passed on as an IOException of the bolt
+     */
+    private static IOException rethrow(Throwable e) {
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        if (e instanceof IOException)
+            return (IOException) e;
+        return new IOException(e);
+    }
+}
@@ -0,0 +1,88 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Timer shared by all periodic protocol work (pings, ACK deadlines, staging
+ * sweeps and re-replication retries). Tasks are multiplexed on TIMER_THREADS threads that
+ * sleep until the next deadline rather than spinning on the system clock.
+ */
+class ProtocolTimer {
+    static final int TIMER_THREADS = 2;
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    private static final Set<Long> timerThreads = ConcurrentHashMap.newKeySet();
+    private static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(TIMER_THREADS, r -> {
+        Thread t = new Thread(r, String.format("protocol-timer-%d", timerThreads.size() + 1));
+        t.setDaemon(true);
+        timerThreads.add(t.getId());
+        return t;
+    });
+    private static final long startNanos = System.nanoTime();
+    private static long lastPeriodNanos;
+    private static long periods;
+    private static long jitterSumNanos;
+    private static long maxJitterNanos;
+
+    static {
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    private static Runnable logged(Task task) {
+        // An exception escaping a periodic task would silently cancel it
+        return () -> {
+            try {
+                task.run();
+            } catch (Error | Exception e) {
+                Server.writeToLog(e);
+            }
+        };
+    }
+
+    static ScheduledFuture<?> schedule(Task task, long delayMillis) {
+        return executor.schedule(logged(task), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static ScheduledFuture<?> scheduleAtFixedRate(Task task, long periodMillis) {
+        return executor.scheduleAtFixedRate(logged(task), 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static ScheduledFuture<?> scheduleWithFixedDelay(Task task, long delayMillis) {
+        return executor.scheduleWithFixedDelay(logged(task), 0, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Called at the start of every failure detector protocol period to track how
+     * far the actual period drifts from periodMillis
+     */
+    static synchronized void recordProtocolPeriod(long periodMillis) {
+        long now = System.nanoTime();
+        if (lastPeriodNanos != 0) {
+            long jitter = Math.abs((now - lastPeriodNanos) - TimeUnit.MILLISECONDS.toNanos(periodMillis));
+            jitterSumNanos += jitter;
+            maxJitterNanos = Math.max(maxJitterNanos, jitter);
+            periods++;
+        }
+        lastPeriodNanos = now;
+    }
+
+    static synchronized String metrics() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuNanos = 0;
+        for (long id : timerThreads)
+            cpuNanos += Math.max(0, threads.getThreadCpuTime(id));
+        long wallNanos = System.nanoTime() - startNanos;
+        return String.format("timer threads: %d%n", timerThreads.size())
+                + String.format("timer cpu: %d ms over %d ms%n", cpuNanos / 1000000, wallNanos / 1000000)
+                + String.format("protocol periods: %d%n", periods)
+                + String.format("protocol period jitter: mean %.3f ms, max %.3f ms%n",
+                        periods == 0 ? 0.0 : jitterSumNanos / 1e6 / periods, maxJitterNanos / 1e6);
+    }
+}
@@ -0,0 +1,275 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-replication driven by membership changes instead of periodic scans.
+ * Each new membership snapshot is compared with the last one planned for,
+ * on the hash ring: only files whose replica set changed are touched. The
+ * first snapshot a node joins with only sets where it starts from. For
+ * each of them one surviving replica, the first in the old ring order, sends
+ * the versions the new replicas lack, and a node that is no longer a replica
+ * hands its copy off, deleting it only once every new replica confirms it
+ * has the newest version.
+ *
+ * All work runs on one thread in priority order: planning first, then the
+ * transfers of the files with the fewest surviving copies, then handoffs.
+ * Transfers are paced to RATE bytes a second. Nothing runs while the
+ * membership is stable.
+ */
+class ReplicaRepair {
+    // Bytes of chunk data sent per second
+    static final long RATE = Long.getLong("sdfs.repairRate", 32L * 1024 * 1024);
+    // Delay before the first retry of a failed transfer or unconfirmed handoff, doubled on each further try
+    static final long RETRY = 1000;
+    static final int MAX_ATTEMPTS = 6;
+
+    private static final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+    private static final AtomicLong sequence = new AtomicLong();
+    // Transfers and handoffs queued or running, so repeated plans do not duplicate them
+    private static final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+    // Snapshot the current placement was planned for, only touched by the repair thread
+    private static Membership planned = Membership.empty();
+    private static long next = System.nanoTime();
+
+    static void start() {
+        Membership.addListener(view -> queue.add(new Plan(view)));
+        Thread thread = new Thread(ReplicaRepair::run, "sdfs-repair");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void run() {
+        while (true) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Error | Exception e) {
+                Server.writeToLog(e);
+            }
+        }
+    }
+
+    /*
+     * Queued work, lower priority runs first and equal priorities in order
+     */
+    private abstract static class Task implements Comparable<Task> {
+        final int priority;
+        final long order = sequence.incrementAndGet();
+        int attempts;
+
+        Task(int priority) {
+            this.priority = priority;
+        }
+
+        abstract void run() throws Exception;
+
+        @Override
+        public int compareTo(Task other) {
+            return priority != other.priority ? Integer.compare(priority, other.priority)
+                    : Long.compare(order, other.order);
+        }
+
+        /*
+         * Queues the task again after a backoff. Returns false once it has
+         * used up its attempts.
+         */
+        boolean retry() {
+            if (++attempts >= MAX_ATTEMPTS)
+                return false;
+            ProtocolTimer.schedule(() -> queue.add(this), RETRY << (attempts - 1));
+            return true;
+        }
+    }
+
+    /*
+     * Works out which files changed replicas between the last planned
+     * snapshot and this one. A plan for a snapshot that has already been
+     * replaced is skipped, the plan for the newer one covers both changes.
+     */
+    private static final class Plan extends Task {
+        final Membership view;
+
+        Plan(Membership view) {
+            super(-1);
+            this.view = view;
+        }
+
+        @Override
+        void run() {
+            if (view.getVersion() < Server.group.getVersion() || !view.contains(Server.ip))
+                return;
+            Membership previous = planned;
+            planned = view;
+            // The first snapshot with us in it is where placement starts, not a change:
+            // against an empty view every file would look newly placed and be sent again
+            if (previous.isEmpty()) {
+                Server.writeToLog(String.format("Membership version %d: placement starts from %d members",
+                        view.getVersion(), view.size()));
+                return;
+            }
+            HashRing before = new HashRing(previous.asList());
+            HashRing after = FileHandler.getRing(view);
+            int changed = 0;
+            int transfers = 0;
+            int handoffs = 0;
+            for (String filename : VersionIndex.getFilenames()) {
+                List<String> old = before.getReplicas(filename, FileHandler.NUM_REPLICAS);
+                List<String> now = after.getReplicas(filename, FileHandler.NUM_REPLICAS);
+                if (new HashSet<>(old).equals(new HashSet<>(now)))
+                    continue;
+                changed++;
+                // Old replicas that are still up have the file, the first of them sends it
+                List<String> holders = new ArrayList<>();
+                for (String ip : old) {
+                    if (view.contains(ip))
+                        holders.add(ip);
+                }
+                if (!holders.contains(Server.ip))
+                    holders.add(Server.ip);
+                if (holders.get(0).equals(Server.ip)) {
+                    for (String target : now) {
+                        if (!holders.contains(target) && schedule(new Transfer(filename, target, holders.size())))
+                            transfers++;
+                    }
+                }
+                if (!now.contains(Server.ip) && schedule(new Handoff(filename)))
+                    handoffs++;
+            }
+            Server.writeToLog(String.format("Membership version %d: %d of %d files changed replicas, "
+                    + "scheduled %d transfers and %d handoffs", view.getVersion(), changed,
+                    VersionIndex.getFilenames().size(), transfers, handoffs));
+        }
+    }
+
+    /*
+     * Queues sending target the versions of filename it lacks, behind the
+     * repairs of under-replicated files. Returns false if already queued.
+     */
+    static boolean transfer(String filename, String target) {
+        return schedule(new Transfer(filename, target, FileHandler.NUM_REPLICAS));
+    }
+
+    private static boolean schedule(Task task) {
+        if (!scheduled.add(task.toString()))
+            return false;
+        queue.add(task);
+        return true;
+    }
+
+    /*
+     * Sends target the versions of filename that are newer than its newest,
+     * as long as target is still a replica of it
+     */
+    private static final class Transfer extends Task {
+        final String filename;
+        final String target;
+
+        Transfer(String filename, String target, int copies) {
+            super(copies);
+            this.filename = filename;
+            this.target = target;
+        }
+
+        @Override
+        void run() throws InterruptedException {
+            Membership view = Server.group;
+            if (!view.contains(target) || !FileHandler.isReplicaNode(filename, view, target)) {
+                scheduled.remove(toString());
+                return;
+            }
+            try {
+                long theirs = Long.parseLong(
+                        Transport.call(target, String.format("%s %s", FailureReplicaReceiver.HAS, filename)).trim());
+                int sent = 0;
+                for (Version version : VersionIndex.get(filename).versions) {
+                    if (version.stamp > theirs) {
+                        pace(FileHandler.sendReplica(target, filename, version));
+                        sent++;
+                    }
+                }
+                Server.writeToLog(String.format("Re-replicated %d versions of %s to %s", sent, filename, target));
+                scheduled.remove(toString());
+            } catch (IOException | NumberFormatException e) {
+                Server.writeToLog(String.format("Re-replicating %s to %s failed: %s", filename, target,
+                        e.getMessage()));
+                if (!retry())
+                    scheduled.remove(toString());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("transfer %s %s", filename, target);
+        }
+    }
+
+    /*
+     * Deletes filename here once this node is no longer one of its replicas
+     * and every replica has its newest version
+     */
+    private static final class Handoff extends Task {
+        final String filename;
+
+        Handoff(String filename) {
+            super(FileHandler.NUM_REPLICAS + 1);
+            this.filename = filename;
+        }
+
+        @Override
+        void run() throws IOException {
+            Membership view = Server.group;
+            Version latest = VersionIndex.get(filename).latest();
+            if (latest == null || FileHandler.isReplicaNode(filename, view, Server.ip)) {
+                scheduled.remove(toString());
+                return;
+            }
+            List<String> replicas = FileHandler.getRing(view).getReplicas(filename, FileHandler.NUM_REPLICAS);
+            List<String> unconfirmed = new ArrayList<>();
+            for (String ip : replicas) {
+                try {
+                    String reply = Transport.call(ip, String.format("%s %s", FailureReplicaReceiver.HAS, filename));
+                    if (Long.parseLong(reply.trim()) < latest.stamp)
+                        unconfirmed.add(ip);
+                } catch (IOException | NumberFormatException e) {
+                    unconfirmed.add(ip);
+                }
+            }
+            if (unconfirmed.isEmpty()) {
+                FileHandler.dropFile(filename);
+                Server.writeToLog(String.format("Handed off %s to %s", filename, replicas));
+                scheduled.remove(toString());
+            } else if (!retry()) {
+                // Kept until the next membership change plans it again
+                Server.writeToLog(String.format("Keeping %s, %s never confirmed it", filename, unconfirmed));
+                scheduled.remove(toString());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("handoff %s", filename);
+        }
+    }
+
+    /*
+     * Sleeps as long as sending bytes takes at RATE
+     */
+    private static void pace(long bytes) throws InterruptedException {
+        long now = System.nanoTime();
+        next = Math.max(next, now) + bytes * 1_000_000_000L / RATE;
+        long wait = next - now;
+        if (wait > 0)
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+    }
+}
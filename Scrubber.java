@@ -0,0 +1,147 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.NoSuchFileException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Background check of every chunk behind the versions this node stores.
+ * Each pass reads every referenced chunk once, at no more than RATE bytes a
+ * second so it never competes with puts and gets for the disk, and checks
+ * it against the CRC32C in its manifest. A chunk that is corrupt or missing
+ * is fetched again as a range of the same version from another replica,
+ * checked, and swapped in.
+ */
+class Scrubber {
+    // Bytes read per second, 0 turns the scrubber off
+    static final long RATE = Long.getLong("sdfs.scrubRate", 8L * 1024 * 1024);
+    // Pause between the end of one pass and the start of the next
+    static final long INTERVAL = Long.getLong("sdfs.scrubInterval", 60L * 60 * 1000);
+    private static final Object wake = new Object();
+    // Set by request() to start the next pass without waiting out INTERVAL, guarded by wake
+    private static boolean requested;
+
+    static void start() {
+        if (RATE <= 0)
+            return;
+        Thread thread = new Thread(Scrubber::run, "sdfs-scrubber");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /*
+     * Has the scrubber start a pass now instead of after INTERVAL, or after
+     * the one it is running. Returns false if the scrubber is turned off.
+     */
+    static boolean request() {
+        if (RATE <= 0)
+            return false;
+        synchronized (wake) {
+            requested = true;
+            wake.notify();
+        }
+        return true;
+    }
+
+    private static void run() {
+        while (true) {
+            try {
+                synchronized (wake) {
+                    long deadline = System.currentTimeMillis() + INTERVAL;
+                    for (long left = INTERVAL; !requested && left > 0; left = deadline - System.currentTimeMillis())
+                        wake.wait(left);
+                    requested = false;
+                }
+                scrub();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Server.writeToLog(e);
+            }
+        }
+    }
+
+    /*
+     * One pass over every version
+     */
+    private static void scrub() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long next = start;
+        Set<String> checked = new HashSet<>();
+        long bytes = 0;
+        int corrupt = 0;
+        int repaired = 0;
+        for (String filename : VersionIndex.getFilenames()) {
+            for (Version version : VersionIndex.get(filename).versions) {
+                Manifest manifest;
+                try {
+                    manifest = Manifest.read(VersionIndex.getManifestPath(filename, version));
+                } catch (NoSuchFileException e) {
+                    // Deleted since the pass started
+                    continue;
+                }
+                long offset = 0;
+                for (int i = 0; i < manifest.hashes.size(); i++) {
+                    String hash = manifest.hashes.get(i);
+                    int length = manifest.lengths.get(i);
+                    Integer crc = manifest.crcs.get(i);
+                    if (crc != null && checked.add(hash)) {
+                        // Paced as a steady stream rather than bursts
+                        next += length * 1_000_000_000L / RATE;
+                        long wait = next - System.nanoTime();
+                        if (wait > 0)
+                            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                        bytes += length;
+                        if (ChunkStore.readVerified(hash, length, crc) == null && ChunkStore.isReferenced(hash)) {
+                            corrupt++;
+                            if (repair(filename, version, hash, offset, length, crc))
+                                repaired++;
+                        }
+                    }
+                    offset += length;
+                }
+            }
+        }
+        Server.writeToLog(String.format("Scrubbed %d chunks (%d MB) in %d s: %d corrupt, %d repaired",
+                checked.size(), bytes >> 20, (System.nanoTime() - start) / 1_000_000_000L, corrupt, repaired));
+    }
+
+    /*
+     * Fetches the chunk at offset of version from the other replicas of
+     * filename until one sends bytes that match its checksum
+     */
+    static boolean repair(String filename, Version version, String hash, long offset, int length, int crc) {
+        List<String> replicas = FileHandler.getReplicaIPs(filename);
+        replicas.remove(Server.ip);
+        for (String ip : replicas) {
+            try (Socket socket = FileHandler.openSocket(ip, Server.SERVER_PORT)) {
+                new DataOutputStream(socket.getOutputStream()).writeUTF(
+                        String.format("get-range %s %s %d %d\n", filename, version.digest, offset, length));
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                in.readBoolean();
+                in.readUTF();
+                in.readLong();
+                if (in.readLong() != length)
+                    continue;
+                byte[] data = new byte[length];
+                in.readFully(data);
+                in.readInt();
+                if (Crc32c.of(data, 0, length) != crc)
+                    continue;
+                if (ChunkStore.repair(hash, data)) {
+                    Server.writeToLog(AsyncLogger.Level.WARN, String.format("Repaired chunk %s of %s from %s", hash,
+                            filename, ip));
+                    return true;
+                }
+                return false;
+            } catch (IOException e) {
+                // Closed without an answer: ip lacks the version, try the next one
+            }
+        }
+        Server.writeToLog(AsyncLogger.Level.ERROR, String.format("Could not repair chunk %s of %s, no replica has it",
+                hash, filename));
+        return false;
+    }
+}
@@ -1,74 +1,67 @@
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.nio.file.Files;
 
 import static java.lang.Math.abs;
 
 public class Server {
     static final String IP_DELIMITER = " ";
-    private static final String INTRODUCER_IP = "172.22.156.255";
+    private static final String INTRODUCER_IP = System.getProperty("sdfs.introducer", "172.22.156.255");
+    // Set to run several servers on one host, e.g. on 127.0.0.1, 127.0.0.2, ...
+    private static final String BIND_IP = System.getProperty("sdfs.ip");
 
     /* FOR DEBUGGING */
     // private static final String INTRODUCER_IP = "192.168.1.12";
     // private static final String INTRODUCER_IP = "10.195.57.170";
     // private static final String INTRODUCER_IP = "172.31.98.6";
 
-    private static final SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy/MM/dd-HH:mm:ss.SSS");
+    private static final DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern("yyyy/MM/dd-HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+    // Last formatted timestamp, most log lines land in the same millisecond as the previous one
+    private static volatile CachedDate cachedDate = new CachedDate(Long.MIN_VALUE, "");
     public static final int SERVER_PORT = 65004;
     volatile static String ip;
-    volatile static ArrayList<String> group = new ArrayList<>();
+    volatile static Membership group = Membership.empty();
     private static ServerSocket serverSocket;
     static String machine;
-    private static FileWriter log;
+    private static final AsyncLogger log = new AsyncLogger();
     public static FileWriter craneLog;
-    private static final boolean DEBUG = true;
+    // Debug logging is compiled out of call sites guarded by if (Server.DEBUG)
+    static final boolean DEBUG = false;
+    static final AsyncLogger.Level LOG_LEVEL = AsyncLogger.Level.valueOf(System.getProperty("sdfs.logLevel", "INFO"));
 
-    private static ArrayList<String> removeDuplicatesAndSort(ArrayList<String> list) {
-        Set<String> set = new HashSet<>(list);
-        ArrayList<String> ret = new ArrayList<>(set);
-        Collections.sort(ret);
-        return ret;
-    }
+    private static final class CachedDate {
+        final long millis;
+        final String text;
 
-    static ArrayList<String> logGrep(String pattern, String logFileName) {
-        ArrayList<String> res = null;
-        try {
-            pattern = pattern.trim();
-            logFileName = logFileName.trim();
-            // run Linux command line in java program
-            Runtime rt = Runtime.getRuntime();
-            // Set the actual command based on feeding pattern
-            String[] cmd = { "/bin/sh", "-c", String.format("grep %s %s", pattern, logFileName).trim() };
-            // Run command line
-            Process proc = rt.exec(cmd);
-            // Convert the command result into a String List
-            return saveStream(proc.getInputStream());
-        } catch (Exception e) {
-            Server.writeToLog(e);
-        }
-        return res;
-    }
-
-    private static ArrayList<String> saveStream(InputStream in) throws IOException {
-        // Create a new bufferedReader using inputStream based on running result of the
-        // command line
-        BufferedReader is = new BufferedReader(new InputStreamReader(in));
-        ArrayList<String> arr = new ArrayList<>();
-        String line;
-        // Loop through each line of the running result
-        while ((line = is.readLine()) != null) {
-            // Append each line into the String list
-            arr.add(line);
+        CachedDate(long millis, String text) {
+            this.millis = millis;
+            this.text = text;
         }
-        // Return a list of String as running result
-        return arr;
+    }
+
+    /*
+     * Streams the log lines matching query to out, returns how many were sent
+     */
+    static long searchLog(LogQuery query, OutputStream out) throws IOException {
+        LogIndex index = log.getIndex();
+        return index == null ? 0 : index.search(query, out);
     }
 
     public static String getStackTrace(final Throwable throwable) {
@@ -88,9 +81,18 @@ public class Server {
     }
 
     private static String getIPAddress() throws UnknownHostException {
+        if (BIND_IP != null)
+            return BIND_IP;
         return InetAddress.getLocalHost().getHostAddress();
     }
 
+    /*
+     * Address every server socket binds to, null for all interfaces
+     */
+    static InetAddress getBindAddress() throws UnknownHostException {
+        return BIND_IP == null ? null : InetAddress.getByName(BIND_IP);
+    }
+
     static String getLogFileName() {
         return String.format("%s.log", machine);
     }
@@ -100,11 +102,20 @@ public class Server {
     }
 
     public static String getCurrentDateAsString() {
-        return dateFormatter.format(new Date());
+        return formatDate(System.currentTimeMillis());
+    }
+
+    static String formatDate(long millis) {
+        CachedDate cached = cachedDate;
+        if (cached.millis != millis) {
+            cached = new CachedDate(millis, dateFormatter.format(Instant.ofEpochMilli(millis)));
+            cachedDate = cached;
+        }
+        return cached.text;
     }
 
     static void writeToLog(final Throwable throwable) {
-        writeToLog(getStackTrace(throwable));
+        writeToLog(AsyncLogger.Level.ERROR, getStackTrace(throwable));
     }
 
     static String getCraneSpout() {
@@ -112,54 +123,51 @@ public class Server {
     }
 
     static void writeToLog(String msg) {
-        try {
-            if (DEBUG) {
-                String date = getCurrentDateAsString();
-                String constructedLog = String.format("%s: %s\n", date, msg);
-                System.out.print(constructedLog);
-                log.write(constructedLog);
-                log.flush();
-            }
-        } catch (IOException e) {
-            Server.writeToLog(e);
-        }
+        writeToLog(AsyncLogger.Level.INFO, msg);
+    }
+
+    static void debug(String msg) {
+        writeToLog(AsyncLogger.Level.DEBUG, msg);
+    }
+
+    static void writeToLog(AsyncLogger.Level level, String msg) {
+        if (level.compareTo(LOG_LEVEL) >= 0)
+            log.log(level, msg);
     }
 
     static void addToMemberList(String ip) throws IOException {
-        group.add(ip);
-        group = removeDuplicatesAndSort(group);
-        String date = getCurrentDateAsString();
+        Membership current;
+        Membership updated;
+        synchronized (Server.class) {
+            current = group;
+            updated = current.with(ip);
+            group = updated;
+        }
         writeToLog(String.format("Added %s to member list", ip));
-        logMemberList();
+        logMemberList(updated);
+        if (updated != current)
+            updated.notifyListeners();
     }
 
     static void removeFromMemberList(String ip) throws IOException {
-        int found = Server.group.indexOf(ip);
-        if (found != -1) {
-            Server.group.remove(found);
+        Membership current;
+        Membership updated;
+        synchronized (Server.class) {
+            current = group;
+            updated = current.without(ip);
+            group = updated;
+        }
+        if (updated != current) {
             writeToLog(String.format("Removed %s from member list", ip));
+            updated.notifyListeners();
         } else {
             writeToLog(String.format("Requested removal of members list for %s but it wasn't there", ip));
         }
-        logMemberList();
+        logMemberList(updated);
     }
 
-    static void updateMemberList(String[] newList) throws IOException {
-        updateMemberList(new ArrayList<>(Arrays.asList(newList)));
-    }
-
-    private static void updateMemberList(ArrayList<String> newList) throws IOException {
-        writeToLog("Received update by membership list");
-        group = removeDuplicatesAndSort(newList);
-        logMemberList();
-    }
-
-    private static void logMemberList() throws IOException {
-        writeToLog(String.format("New member list: %s", Server.group.toString()));
-    }
-
-    static String memberListToPacketData() {
-        return String.join(IP_DELIMITER, Server.group);
+    private static void logMemberList(Membership view) throws IOException {
+        writeToLog(String.format("New member list (version %d): %s", view.getVersion(), view.toString()));
     }
 
     private static void setupServer() throws IOException {
@@ -167,17 +175,33 @@ public class Server {
         machine = getCanonicalName();
         ip = getIPAddress();
         // FileWriter object contains topology to log file for server
-        log = new FileWriter(new File(getLogFileName()));
+        log.setFile(getLogFileName());
         craneLog = new FileWriter(new File(getCraneLogFileName()));
         writeToLog(String.format("Attempting to start server at: %s", ip));
 
         // Setup CraneApp actions
         Crane.setup();
 
-        // Start SDFS replicas threads
-        // new FailureReplicaReceiveThread().start();
-        // new FailureReplicaCleanupThread().start();
-        // new FailureReplicaSendThread().start();
+        // Rebuild the placement ring as soon as membership changes instead of on the next lookup
+        Membership.addListener(FileHandler::getRing);
+
+        // Versions and chunk reference counts must be known before any put or delete touches the store
+        VersionIndex.load();
+        ChunkStore.load();
+        Scrubber.start();
+
+        // Peer connections carry the replica chain and re-replication
+        Transport.listen();
+        Transport.register("chain-put", FileHandler::receiveChainPut);
+        Transport.register("chain-commit", FileHandler::commitChainPut);
+        Transport.register("chain-abort", FileHandler::abortChainPut);
+        ProtocolTimer.scheduleWithFixedDelay(FileHandler::sweepStaging, FileHandler.STAGING_TTL);
+        FailureReplicaReceiver.register();
+        Membership.addListener(Transport::prune);
+
+        // Re-replication runs on membership changes, before the first member is added
+        ReplicaRepair.start();
+        AntiEntropy.start();
 
         if (ip.equals(INTRODUCER_IP)) {
             // If I am the introducer machine
@@ -185,6 +209,7 @@ public class Server {
             new AckThread().start();
             new IntroducerThread().start();
             new ConnectThread().start();
+            new IndirectProbeThread().start();
             new PingThread().start();
         } else {
             /*
@@ -196,16 +221,21 @@ public class Server {
              * If the introducer machine is available: start a new server else exit
              */
             SocketHelper socket = new SocketHelper(SocketHelper.CONNECT_PORT);
-            socket.send(ip, INTRODUCER_IP, SocketHelper.INTRODUCER_PORT);
+            socket.send(String.join(Gossip.FIELD_DELIMITER, ip, Long.toString(Gossip.getIncarnation())), INTRODUCER_IP,
+                    SocketHelper.INTRODUCER_PORT);
             try {
+                // The introducer replies with our initial membership snapshot, possibly over several packets
                 DatagramPacket packet = socket.receive(FailureDetectionThread.PROTOCOL_PERIOD);
+                while (!Gossip.applySnapshot(SocketHelper.getStringFromPacket(packet)))
+                    packet = socket.receive(FailureDetectionThread.PROTOCOL_PERIOD);
+                // Gossip never reports us to ourselves
+                addToMemberList(ip);
 
                 // We have successfully confirmed introducer is available
                 socket.close(); // Allow connect thread to open port at CONNECT_PORT
-                String msg = SocketHelper.getStringFromPacket(packet);
-                updateMemberList(msg.split(Server.IP_DELIMITER));
                 new AckThread().start();
                 new ConnectThread().start();
+                new IndirectProbeThread().start();
                 new PingThread().start();
             } catch (SocketTimeoutException e) {
                 // Introducer is inactive
@@ -217,12 +247,13 @@ public class Server {
 
     public static void main(String args[]) throws IOException, InterruptedException {
         setupServer();
-        serverSocket = new ServerSocket(SERVER_PORT);
+        serverSocket = FileHandler.openServerSocket(SERVER_PORT);
+        RequestDispatcher dispatcher = new RequestDispatcher();
         Server.writeToLog("Looking for new connection on server");
         while (true) {
-            writeToLog("Looking for new connection on server");
-            ServerResponseThread srt = new ServerResponseThread(serverSocket.accept());
-            srt.run();
+            if (DEBUG)
+                debug("Looking for new connection on server");
+            dispatcher.dispatch(serverSocket.accept());
         }
     }
 }
@@ -242,48 +273,55 @@ class BoltThread extends Thread {
 
     public void run() {
         try {
-            // Keep trying to connect to spout
-            while (true) {
-                try {
-                    Socket s = new Socket(Server.getCraneSpout(), Crane.CRANE_PORT);
-                    /*
-                     * Obtain list of tuples to process
-                     */
-                    BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream()));
-                    while (!br.ready()) {
-                        // Wait for the file to perform topology on
-                    }
-
-                    long start = System.currentTimeMillis();
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        // Perform topology
-                        String action;
-                        for (int i = 0; i < topology.length; i++) {
-                            action = topology[i];
-                            line = (String) CraneApp.actions.get(action).invoke(null, line);
-                        }
-                        if (!line.equals("")) {
-                            String lineWithNewline = line + '\n';
-                            Server.craneLog.write(lineWithNewline);
-                            writer.writeBytes(lineWithNewline);
-                        }
-                    }
-                    Server.craneLog.flush();
-                    writer.flush();
-                    long end = System.currentTimeMillis();
-                    long timeElapsed = end - start;
-                    Server.writeToLog(String.format("bolt time elapsed: %d", timeElapsed));
-                    s.close();
-                    return;
-                } catch (ConnectException e) {
-                    Server.writeToLog("Connect failed, waiting and trying again");
+            // Compiled once for the job, its executors run every tuple through their stages
+            Topology job = new Topology(topology, CraneApp.actions, tuple -> {
+                if (!tuple.equals("")) {
+                    String lineWithNewline = tuple + '\n';
+                    Server.craneLog.write(lineWithNewline);
+                    writer.write(lineWithNewline.getBytes(StandardCharsets.UTF_8));
+                }
+            });
+            try {
+                // Keep trying to connect to spout
+                while (true) {
                     try {
-                        Thread.sleep(500); // 0.5 seconds
-                    } catch (InterruptedException ie) {
-                        Server.writeToLog(ie);
+                        SocketChannel s = SocketChannel.open(new InetSocketAddress(Server.getCraneSpout(),
+                                Crane.CRANE_PORT));
+                        // The spout sends this bolt batches against credits, in proportion to its executors
+                        ByteBuffer hello = ByteBuffer.allocate(8).putInt(job.parallelism())
+                                .putInt(CreditRouter.CREDITS * job.parallelism()).flip();
+                        while (hello.hasRemaining())
+                            s.write(hello);
+                        /*
+                         * Obtain list of tuples to process, blocks until the spout sends the first batch.
+                         * A credit goes back for each batch read.
+                         */
+                        Tuples.Reader reader = new Tuples.Reader(s, s);
+
+                        long start = System.currentTimeMillis();
+                        String line;
+                        while ((line = reader.read()) != null)
+                            job.accept(line);
+                        reader.close();
+                        job.finish();
+                        Server.craneLog.flush();
+                        writer.flush();
+                        long end = System.currentTimeMillis();
+                        long timeElapsed = end - start;
+                        Server.writeToLog(String.format("bolt time elapsed: %d", timeElapsed));
+                        s.close();
+                        return;
+                    } catch (ConnectException e) {
+                        Server.writeToLog("Connect failed, waiting and trying again");
+                        try {
+                            Thread.sleep(500); // 0.5 seconds
+                        } catch (InterruptedException ie) {
+                            Server.writeToLog(ie);
+                        }
                     }
                 }
+            } finally {
+                job.stop();
             }
         } catch (Error | Exception e) {
             Server.writeToLog(e);
@@ -297,6 +335,8 @@ class BoltThread extends Thread {
  */
 class SpoutThread extends Thread {
     String db;
+    // Field of the database lines that picks their bolt, -1 for the least loaded
+    int keyField;
 
     /*
      * Spout thread opens up database from the topology set
@@ -304,47 +344,38 @@ class SpoutThread extends Thread {
     public SpoutThread(String topology) {
         Server.writeToLog("SPOUT THREAD");
         this.db = topology.split(Crane.FILE_DELIMITER)[1];
+        this.keyField = Topology.keyField(topology.split(Crane.FILE_DELIMITER)[0].split(" "));
     }
 
     public void run() {
         try {
             // Wait for connections
-            ServerSocket ss = new ServerSocket(Crane.CRANE_PORT);
+            ServerSocketChannel ss = ServerSocketChannel.open().bind(new InetSocketAddress(Crane.CRANE_PORT));
             int numBolts = 0;
-            ArrayList<Socket> sockets = new ArrayList<>();
-            ArrayList<DataOutputStream> writers = new ArrayList<>();
-            while (numBolts++ < Server.group.size() - 1) {
-                Socket socket = ss.accept();
-                sockets.add(socket);
-                writers.add(new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
-            }
+            CreditRouter router = new CreditRouter(keyField);
+            while (numBolts++ < Server.group.size() - 1)
+                router.add(ss.accept());
 
             // Instantiate stream and constants
             BufferedReader stream = Files.newBufferedReader(Paths.get(db));
 
-            // Round robin send the lines to the bolts
-            int currentIndex = 0;
+            // Each batch goes to the least loaded bolt with a credit for it, or the bolt of its key
             String line;
             long start = System.currentTimeMillis();
             long timeElapsed;
-            while ((line = stream.readLine()) != null) {
-                try {
-                    writers.get((currentIndex = (currentIndex + 1) % writers.size())).writeBytes(line + "\n");
-                } catch (SocketException e) {
-                    writers.remove(currentIndex);
-                    writers.get((currentIndex = (currentIndex + 1) % writers.size())).writeBytes(line + "\n");
-                }
+            try {
+                while ((line = stream.readLine()) != null)
+                    router.write(line);
+                // Waits for every bolt to take all it was sent, then ends the streams
+                router.finish();
+                long end = System.currentTimeMillis();
+                timeElapsed = end - start;
+                Server.writeToLog(String.format("sprout time elapsed: %d%n%s", timeElapsed, router.stats()));
+            } finally {
+                // Close all the sockets
+                router.close();
+                ss.close();
             }
-            long end = System.currentTimeMillis();
-            timeElapsed = end - start;
-            Server.writeToLog(String.format("sprout time elapsed: %d", timeElapsed));
-            // Flush all data
-            for (DataOutputStream writer : writers)
-                writer.flush();
-            // Close all the sockets
-            for (Socket socket : sockets)
-                socket.close();
-            ss.close();
 
         } catch (Error | Exception e) {
             Server.writeToLog(e);
@@ -354,6 +385,79 @@ class SpoutThread extends Thread {
 
 }
 
+/*
+ * Runs accepted client connections on a bounded worker pool so a slow put,
+ * get-versions or crane request no longer blocks every other client on
+ * SERVER_PORT. Each command additionally has its own concurrency limit so a
+ * long running command cannot take every worker away from get/ls traffic.
+ */
+class RequestDispatcher {
+    static final int MAX_IN_FLIGHT = Integer.getInteger("sdfs.maxInFlight", 32);
+    static final int QUEUE_SIZE = Integer.getInteger("sdfs.queueSize", 128);
+    // "block" stalls the accept loop until a worker frees up, "reject" closes the new connection
+    static final String REJECT_POLICY = System.getProperty("sdfs.rejectPolicy", "block");
+    private static final Map<String, Semaphore> commandLimits = new HashMap<>();
+
+    static {
+        setCommandLimit("crane", 1);
+        // Puts stage under their own transaction ID and no longer queue for a shared port
+        setCommandLimit("put", 24);
+        setCommandLimit("get-versions", 4);
+        setCommandLimit("grep", 4);
+        setCommandLimit("log", 2);
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    RequestDispatcher() {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(MAX_IN_FLIGHT, MAX_IN_FLIGHT, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+                    Thread t = new Thread(r, String.format("sdfs-worker-%d", count.incrementAndGet()));
+                    t.setDaemon(true);
+                    return t;
+                }, this::rejected);
+        executor.allowCoreThreadTimeOut(true);
+        Server.writeToLog(String.format("Dispatcher started with %d workers, queue of %d, %s policy",
+                MAX_IN_FLIGHT, QUEUE_SIZE, REJECT_POLICY));
+    }
+
+    /*
+     * Limits can be overridden per command with -Dsdfs.limit.<command>=<n>
+     */
+    private static void setCommandLimit(String command, int defaultLimit) {
+        commandLimits.put(command, new Semaphore(Integer.getInteger("sdfs.limit." + command, defaultLimit)));
+    }
+
+    static boolean tryAcquire(String command) {
+        Semaphore limit = commandLimits.get(command);
+        return limit == null || limit.tryAcquire();
+    }
+
+    static void release(String command) {
+        Semaphore limit = commandLimits.get(command);
+        if (limit != null)
+            limit.release();
+    }
+
+    void dispatch(Socket socket) {
+        executor.execute(new ServerResponseThread(socket));
+    }
+
+    private void rejected(Runnable r, ThreadPoolExecutor executor) {
+        if (REJECT_POLICY.equals("block") && !executor.isShutdown()) {
+            try {
+                executor.getQueue().put(r);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Server.writeToLog("Dispatcher is saturated, rejecting connection");
+        ((ServerResponseThread) r).reject();
+    }
+}
+
 class ServerResponseThread extends Thread {
     private Socket socket;
 
@@ -361,8 +465,17 @@ class ServerResponseThread extends Thread {
         this.socket = socket;
     }
 
+    void reject() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Server.writeToLog(e);
+        }
+    }
+
     @Override
     public void run() {
+        String acquired = null;
         try {
             DataInputStream reader = new DataInputStream(socket.getInputStream());
             DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
@@ -370,6 +483,14 @@ class ServerResponseThread extends Thread {
             Server.writeToLog(String.format("Got command: %s", cmd));
             cmd = cmd.trim();
             String[] cmds = cmd.split(" ");
+            if (!RequestDispatcher.tryAcquire(cmds[0])) {
+                Server.writeToLog(String.format("Too many concurrent %s requests, rejecting", cmds[0]));
+                writer.writeBytes(String.format("Server busy with %s requests, try again later", cmds[0]));
+                writer.flush();
+                socket.close();
+                return;
+            }
+            acquired = cmds[0];
             switch (cmds[0]) {
             /*
              * crane: initializes spoutThread or boltThread to perform crane operations on a
@@ -398,25 +519,38 @@ class ServerResponseThread extends Thread {
              * server
              */
             case "print":
+                Membership view = Server.group;
                 writer.writeBytes(String.format("My ID is: %s\n", Server.ip));
-                writer.writeBytes(String.format("%d members are in my group\n", Server.group.size()));
-                for (String server : Server.group)
+                writer.writeBytes(String.format("%d members are in my group\n", view.size()));
+                for (String server : view)
                     writer.writeBytes(String.format("%s\n", server));
                 Server.writeToLog("Sent membership list to client");
                 break;
             /*
-             * grep: execute a grep command on the log file and send back the grep results
+             * metrics: reports failure detector timer metrics
+             */
+            case "metrics":
+                writer.writeBytes(ProtocolTimer.metrics());
+                break;
+            /*
+             * grep: search the log file and stream back the matching lines
              */
             case "grep":
                 if (cmds.length < 2) {
                     Server.writeToLog("grep command did not have the right arguments");
                     return;
                 }
-                // Extract pattern
+                // Extract options and pattern
                 int patternStart = cmd.indexOf(" ");
-                ArrayList<String> res = Server.logGrep(cmd.substring(patternStart + 1), Server.getLogFileName());
-                writer.writeBytes(String.join("\n", res));
-                Server.writeToLog("Sent grep output to client");
+                LogQuery query;
+                try {
+                    query = LogQuery.parse(cmd.substring(patternStart + 1));
+                } catch (IllegalArgumentException e) {
+                    writer.writeBytes(String.format("Invalid grep query: %s\n", e.getMessage()));
+                    break;
+                }
+                long matches = Server.searchLog(query, writer);
+                Server.writeToLog(String.format("Sent %d grep matches to client", matches));
                 break;
             /*
              * quit: exits if I was commanded to quit, else update my membership list
@@ -459,38 +593,50 @@ class ServerResponseThread extends Thread {
                 Server.writeToLog(String.format("Checked for %s.", cmds[1]));
                 break;
             /*
-             * put: receives a file from the client. Saves the file to a tmp file and then
-             * saves the file into the sdfs if the master node sends a signal to save,
-             * otherwise we delete the tmp file and move on.
+             * stat: the newest version of a file here as "<stamp> <size> <digest> <crc32c>", so a
+             * client can compare replicas before fetching from the newest one
              */
-            case "put":
-                // Receive signal to save or not
-                ReplicaReceiveThread receive = new ReplicaReceiveThread(socket, writer, cmds[2]);
-                receive.start();
-                Server.writeToLog("Started replica receive thread");
-
-                // Master node needs to coordinate where files go by sending the save/delete
-                // signals
-                Server.writeToLog(
-                        String.format("Master node is: %s and my ip is %s", FileHandler.getMasterNodeIP(), Server.ip));
-                ReplicaMasterThread master = null;
-                if (Server.ip.equals(FileHandler.getMasterNodeIP())) {
-                    Server.writeToLog("I am the master node!");
-                    master = new ReplicaMasterThread(cmds[2]);
-                    master.start();
-                    Server.writeToLog("Started replica master thread");
+            case "stat":
+                Version latest = VersionIndex.get(cmds[1]).latest();
+                if (latest != null) {
+                    writer.writeBytes(String.format("%d %d %s %08x", latest.stamp, latest.size, latest.digest,
+                            latest.checksum));
+                } else {
+                    writer.writeBytes("-----not found");
                 }
-
-                try {
-                    if (master != null) {
-                        master.join();
-                        Server.writeToLog("Master thread successfully joined");
-                    }
-                    receive.join();
-                    Server.writeToLog("Replica threads finished");
-                } catch (InterruptedException e) {
-                    Server.writeToLog(e);
+                break;
+            /*
+             * put: receives a file from the client as the head of the replica chain. The
+             * file is pipelined to the other replicas, which stage it under a transaction
+             * ID of its own so any number of puts can be in flight. Once the write quorum
+             * has staged it every replica is told to commit, otherwise to discard it.
+             */
+            case "put":
+                ArrayList<String> replicas = FileHandler.getReplicaIPs(cmds[2]);
+                ArrayList<String> chain = new ArrayList<>(replicas);
+                boolean store = chain.remove(Server.ip);
+                String txn = FileHandler.newTransaction();
+                if (Server.DEBUG)
+                    Server.debug(String.format("put: %s replica chain %s", cmds[2], chain.toString()));
+                ReadableByteChannel upstream = socket.getChannel() != null ? socket.getChannel()
+                        : Channels.newChannel(socket.getInputStream());
+                int persisted = FileHandler.receiveChainFile(txn, cmds[2], upstream, chain, store);
+                boolean commit = persisted >= Math.min(FileHandler.WRITE_QUORUM, Server.group.size());
+                FileHandler.finishTransaction(txn, cmds[2], replicas, commit);
+                if (commit) {
+                    writer.writeBytes(String.format("File saved ACK from %d replicas", persisted));
+                } else {
+                    writer.writeBytes(String.format("Write quorum not reached, %d replicas saved the file", persisted));
                 }
+                Server.writeToLog(String.format("put: %s %s on %d replicas as %s", cmds[2],
+                        commit ? "committed" : "discarded", persisted, txn));
+                break;
+            /*
+             * replicas: lists the replica chain of a file so clients know where to put it
+             */
+            case "replicas":
+                for (String replica : FileHandler.getReplicaIPs(cmds[1]))
+                    writer.writeBytes(String.format("%s\n", replica));
                 break;
             /*
              * get: sends a file to the client
@@ -498,11 +644,16 @@ class ServerResponseThread extends Thread {
             case "get":
                 try {
                     if (FileHandler.fileExists(cmds[1])) {
-                        Server.writeToLog("get: File exists and i'm signalling that I have it");
+                        if (Server.DEBUG)
+                            Server.debug("get: File exists and i'm signalling that I have it");
                         writer.writeBoolean(true);
-                        Server.writeToLog("get: signaled yes");
+                        // The file goes straight to the socket, so the signal must not sit in the buffer behind it
+                        writer.flush();
+                        if (Server.DEBUG)
+                            Server.debug("get: signaled yes");
                         int versions = FileHandler.numVersions(cmds[1]);
-                        Server.writeToLog("get: sending file");
+                        if (Server.DEBUG)
+                            Server.debug("get: sending file");
                         FileHandler.sendFile(cmds[1], socket, versions - 1);
                         Server.writeToLog(String.format("get: sent file %s", cmds[1]));
                     }
@@ -513,37 +664,51 @@ class ServerResponseThread extends Thread {
                 }
                 break;
             /*
-             * get-versions: get all versions of a file. Writes all versions to a temporary
-             * file and then sends that temp file back to the client.
+             * get-range: sends part of a version, "get-range <file> <latest|digest> <offset>
+             * <length>", so clients can resume a transfer or fetch ranges from several
+             * replicas at once (see FileHandler.sendRange)
+             */
+            case "get-range":
+                try {
+                    long sent = FileHandler.sendRange(cmds[1], cmds[2], Long.parseLong(cmds[3]),
+                            Long.parseLong(cmds[4]), socket, writer);
+                    if (Server.DEBUG)
+                        Server.debug(String.format("get-range: sent %d bytes of %s from %s", sent, cmds[1], cmds[3]));
+                } catch (FileNotFoundException e) {
+                    // Closing without an answer tells the client this version is not here
+                    Server.writeToLog(String.format("get-range: %s", e.getMessage()));
+                }
+                break;
+            /*
+             * crane-stats: per bolt tuples, credits, queue depth and time without credit
+             * of the running or last crane job this node was the spout of
+             */
+            case "crane-stats":
+                writer.write(CreditRouter.lastStats().getBytes(StandardCharsets.UTF_8));
+                break;
+            /*
+             * scrub: has the background scrubber check every chunk here against its
+             * checksum now instead of on its next pass, repairing corrupt ones from
+             * the other replicas. The pass is paced, so its results go to the log.
+             */
+            case "scrub":
+                writer.writeBytes(Scrubber.request() ? "Scrub started, see the log for the results"
+                        : "The scrubber is turned off by sdfs.scrubRate");
+                break;
+            /*
+             * get-versions: sends the newest k versions of a file, oldest first, as a
+             * header with the number and length of each followed by their bytes
+             * streamed straight from the chunks (see FileHandler.sendVersions)
              */
             case "get-versions":
                 try {
                     if (FileHandler.fileExists(cmds[1])) {
-                        Server.writeToLog("get-versions: File exists and i'm signalling that I have it");
                         writer.writeBoolean(true);
-                        Server.writeToLog("get-versions: signaled yes");
-                        int numVersions = FileHandler.numVersions(cmds[1]);
-                        Server.writeToLog(String.format("get-versions numVersions: %d", numVersions));
                         int numVersionsRequested = Integer.parseInt(cmds[2]);
-                        Server.writeToLog(String.format("get-versions numVersionsRequested: %d", numVersionsRequested));
-                        // Concatenate all versions into a tmp file
-                        Path tmpFile = Files.createTempFile(null, null);
-                        Server.writeToLog(String.format("get-versions tmpFile: %s", tmpFile.getFileName()));
-                        if (numVersions - numVersionsRequested > -1) {
-                            Server.writeToLog("get-versions: Concatenating versions to a temp file");
-                            FileOutputStream out = new FileOutputStream(tmpFile.toFile(), true);
-                            for (int i = numVersions - numVersionsRequested; i < numVersions; i++) {
-                                File versionFile = FileHandler.getVersionContent(cmds[1], i);
-                                FileHandler.appendFileToFile(versionFile, tmpFile.toFile());
-                                out.write(FileHandler.DELIMITER.getBytes());
-                                Server.writeToLog(String.format("get-versions appended version: %d", i));
-                            }
-                            Server.writeToLog(String.format("get-versions Sending concatenated versions: %s",
-                                    tmpFile.getFileName()));
-                            FileHandler.sendFile(tmpFile.toFile(), socket);
-                        } else {
-                            Server.writeToLog("get-versions: Client requested too many versions");
-                        }
+                        if (Server.DEBUG)
+                            Server.debug(String.format("get-versions numVersionsRequested: %d", numVersionsRequested));
+                        int sent = FileHandler.sendVersions(cmds[1], numVersionsRequested, socket, writer);
+                        Server.writeToLog(String.format("get-versions: sent %d versions of %s", sent, cmds[1]));
                     }
                 } catch (FileNotFoundException e) {
                     Server.writeToLog(e);
@@ -568,151 +733,37 @@ class ServerResponseThread extends Thread {
             socket.close();
         } catch (Error | Exception e) {
             Server.writeToLog(e);
+        } finally {
+            if (acquired != null)
+                RequestDispatcher.release(acquired);
         }
     }
 
 }
 
-class FailureReplicaSendThread extends FailureDetectionThread {
-    final int TIMEOUT = 2000;
-
-    @Override
-    public void run() {
-        while (true) {
-            try {
-                Server.writeToLog("Re-replicating files on my sdfs");
-                for (File file : FileHandler.getFiles()) {
-                    Server.writeToLog(String.format("Re-replicating: %s", file.getName()));
-                    for (int i = 0; i < Server.group.size(); i++) {
-                        if (FileHandler.isReplicaNode(file.getName(), i)) {
-                            Server.writeToLog(
-                                    String.format("Re-replicating %s to %s", file.getName(), Server.group.get(i)));
-                            Socket socket = new Socket(Server.group.get(i), FileHandler.FAILURE_REPLICA_PORT);
-                            socket.setSoTimeout(TIMEOUT);
-                            Server.writeToLog(String.format("Established connection to %s", Server.group.get(i)));
-                            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                            DataInputStream in = new DataInputStream(socket.getInputStream());
-                            out.writeUTF(file.getName());
-                            boolean sendOrNot = in.readBoolean();
-                            if (sendOrNot) {
-                                Server.writeToLog(
-                                        String.format("Sending %s to %s", file.getName(), Server.group.get(i)));
-                                int versions = FileHandler.numVersions(file.getName());
-                                FileHandler.sendFile(file, socket, versions - 1); // Send entire file
-                                Server.writeToLog("Sent re-replication file");
-                            } else {
-                                Server.writeToLog("Did not send re-replication file");
-                            }
-                        }
-                    }
-                }
-                systemClockSleep(1500);
-            } catch (IOException e) {
-                Server.writeToLog(e);
-            }
-        }
-    }
-}
-
-class FailureReplicaCleanupThread extends Thread {
-
-    public FailureReplicaCleanupThread() {
-        Server.writeToLog("Instantiated FailureReplicaCleanupThread");
-    }
-
-    @Override
-    public void run() {
-        while (true) {
-            try {
-                int myIndex = Server.group.indexOf(Server.ip);
-                if (myIndex != -1) {
-                    for (File file : FileHandler.getFiles()) {
-                        if (!FileHandler.isReplicaNode(file.getName(), myIndex)) {
-                            Server.writeToLog(String.format("Deleting-file: %s", file.getName()));
-                            Server.writeToLog(String.format("Deleting-hashcode: %s", file.getName().hashCode()));
-                            Server.writeToLog(String.format("Deleting-file-node: %d",
-                                    FileHandler.getNodeFromFile(file.getName())));
-                            Server.writeToLog(String.format("Deleting-group: %s", Server.group.toString()));
-                            Server.writeToLog(String.format("Deleting-myIndex: %d", myIndex));
-                            Server.writeToLog(String.format("Deleting-Server.ip: %s", Server.ip));
-                            FileHandler.deleteFile(file.getName());
-                        }
-                    }
-                }
-                Thread.sleep(500);
-            } catch (IOException | InterruptedException e) {
-                Server.writeToLog(e.getMessage());
-            }
-        }
-    }
-}
-
-class FailureReplicaReceiveThread extends Thread {
-    ServerSocket serverSocket;
-    final int TIMEOUT = 2000;
-
-    public FailureReplicaReceiveThread() {
-        try {
-            serverSocket = new ServerSocket(FileHandler.FAILURE_REPLICA_PORT);
-            Server.writeToLog("Instantiated failure replica receive server socket");
-        } catch (IOException e) {
-            Server.writeToLog(e);
-        }
-    }
-
-    @Override
-    public void run() {
-        while (true) {
-            try {
-                Socket socket = serverSocket.accept();
-                socket.setSoTimeout(TIMEOUT);
-                // Server.writeToLog(String.format("Got connection for re-replication from %s",
-                // socket.getRemoteSocketAddress().toString()));
-                DataInputStream in = new DataInputStream(socket.getInputStream());
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                String filename = in.readUTF().trim();
-                // Server.writeToLog(String.format("File to be re-replicated on me: %s",
-                // filename));
-                if (!FileHandler.fileExists(filename)) {
-                    Server.writeToLog("File does not exist for me, accepting re-replication file");
-                    out.writeBoolean(true);
-                    FileHandler.receiveFile(filename, socket);
-                    Server.writeToLog(String.format("Saved re-replication file: %s", filename));
-                } else {
-                    out.writeBoolean(false);
-                    // Server.writeToLog(String.format("Re-replication file already exists: %s",
-                    // filename));
-                }
-            } catch (IOException e) {
-                Server.writeToLog(e);
-            }
-        }
-    }
+class FailureDetectionThread extends Thread {
+    public static final int[] neighbors = { -2, -1, 1, 2 };
+    static final int PROTOCOL_PERIOD = 400;
+    static final int FAIL_TIME = 1000;
+    // Members asked to ping an unresponsive neighbor on our behalf
+    static final int INDIRECT_PROBES = Integer.getInteger("sdfs.indirectProbes", 3);
+    SocketHelper socket;
 
 }
 
-class ReplicaReceiveThread extends Thread {
-    Socket socket;
-    String filename;
-    DataOutputStream writer;
-
-    public ReplicaReceiveThread(Socket socket, DataOutputStream writer, String filename) {
-        this.socket = socket;
-        this.writer = writer;
-        this.filename = filename;
-    }
-
+class AckThread extends FailureDetectionThread implements Runnable {
     @Override
     public void run() {
         try {
-            if (FileHandler.receiveReplicaSignal()) {
-                // Signaled to save
-                Server.writeToLog("Received replica signal to save");
-                FileHandler.receiveFile(filename, socket);
-                Server.writeToLog(String.format("Saved file: %s", filename));
-                writer.writeBytes("File saved ACK");
-            } else {
-                Server.writeToLog("Received replica signal to not save");
+            socket = new SocketHelper(SocketHelper.ACK_PORT);
+            while (true) {
+                DatagramPacket packet = socket.receive();
+                String senderIP = packet.getAddress().getHostAddress();
+                if (!Server.group.contains(senderIP))
+                    Server.writeToLog("Got ping from someone not in my list: " + senderIP);
+                Gossip.receive(senderIP, SocketHelper.getStringFromPacket(packet));
+                // Reply to the sending port, pings also come from IndirectProbeThread
+                socket.send(Gossip.piggyback(), senderIP, packet.getPort());
             }
         } catch (IOException e) {
             Server.writeToLog(e);
@@ -720,85 +771,83 @@ class ReplicaReceiveThread extends Thread {
     }
 }
 
-class ReplicaMasterThread extends Thread {
-    String filename;
-
-    public ReplicaMasterThread(String filename) {
-        this.filename = filename;
-    }
+/*
+ * Pings one neighbor every PROTOCOL_PERIOD from the ProtocolTimer. If its ACK
+ * has not arrived FAIL_TIME later, INDIRECT_PROBES other members are asked to
+ * ping it, and only if none of them relays an ACK within another FAIL_TIME is
+ * the neighbor gossiped as suspected. The thread itself only blocks receiving
+ * ACKs.
+ */
+class PingThread extends FailureDetectionThread implements Runnable {
+    private int i = 0;
+    // Neighbors with an outstanding ping, mapped to when the ping was sent
+    private static final ConcurrentHashMap<String, Long> pending = new ConcurrentHashMap<>();
 
-    @Override
-    public void run() {
-        try {
-            // Give the signal to either save or delete the temporary file
-            for (int i = 0; i < Server.group.size(); i++) {
-                boolean signal = FileHandler.isReplicaNode(filename, i);
-                Server.writeToLog(String.format("Master-thread-filename: %s", filename));
-                Server.writeToLog(String.format("Master-thread-signal: %b", signal));
-                Server.writeToLog(String.format("Master-thread-hashcode: %s", filename.hashCode()));
-                Server.writeToLog(String.format("Master-thread-file-node: %d", FileHandler.getNodeFromFile(filename)));
-                Server.writeToLog(String.format("Master-thread-group: %s", Server.group.toString()));
-                Server.writeToLog(String.format("Master-thread-i: %d", i));
-                Server.writeToLog(String.format("Master-thread-Server.ip: %s", Server.group.get(i)));
-                FileHandler.sendReplicaSignal(Server.group.get(i), signal);
-                Server.writeToLog(String.format("Sent replica signal to %s", Server.group.get(i)));
-            }
-        } catch (IOException e) {
-            Server.writeToLog(e.getMessage());
-        }
+    private String nextNeighbor() {
+        Membership view = Server.group;
+        if (view.isEmpty())
+            return Server.ip;
+        i = (i + 1) % neighbors.length;
+        return view.get(Math.floorMod(view.indexOf(Server.ip) + neighbors[i], view.size()));
     }
-}
-
-class FailureDetectionThread extends Thread {
-    public static final int[] neighbors = { -2, -1, 1, 2 };
-    static final int PROTOCOL_PERIOD = 400;
-    static final int FAIL_TIME = 1000;
-    SocketHelper socket;
 
-    int indexWrap(int idx) {
-        if (idx < 0) {
-            return Server.group.size() + idx;
-        }
-        return idx;
+    private void pingNeighbor(String neighbor) throws IOException {
+        if (Server.DEBUG)
+            Server.debug("Sending ping to: " + neighbor);
+        socket.send(Gossip.piggyback(), neighbor, SocketHelper.ACK_PORT);
+    }
+
+    private void protocolPeriod() throws IOException {
+        ProtocolTimer.recordProtocolPeriod(PROTOCOL_PERIOD);
+        String neighbor = nextNeighbor();
+        if (neighbor.equals(Server.ip))
+            return;
+        long sentAt = System.nanoTime();
+        if (pending.putIfAbsent(neighbor, sentAt) != null)
+            return; // Still waiting on the previous ping to this neighbor
+        pingNeighbor(neighbor);
+        ProtocolTimer.schedule(() -> checkForACK(neighbor, sentAt), FAIL_TIME);
+    }
+
+    private void checkForACK(String neighbor, long sentAt) throws IOException {
+        if (!Long.valueOf(sentAt).equals(pending.get(neighbor)))
+            return;
+        ArrayList<String> helpers = new ArrayList<>(Server.group.asList());
+        helpers.remove(Server.ip);
+        helpers.remove(neighbor);
+        Collections.shuffle(helpers);
+        Server.writeToLog(String.format("No ACK from %s, probing indirectly", neighbor));
+        for (String helper : helpers.subList(0, Math.min(INDIRECT_PROBES, helpers.size())))
+            socket.send(String.format("%s %s", IndirectProbeThread.REQUEST, neighbor), helper,
+                    SocketHelper.INDIRECT_PORT);
+        ProtocolTimer.schedule(() -> checkForIndirectACK(neighbor, sentAt), FAIL_TIME);
+    }
+
+    private void checkForIndirectACK(String neighbor, long sentAt) {
+        if (pending.remove(neighbor, sentAt))
+            Gossip.suspect(neighbor);
     }
 
     /*
-     * Since we can't use Thread.sleep because it is a static sleep that only sleeps
-     * the currently running main thread, we will use the system clock for a
-     * sleeping
+     * An ACK from ip arrived, either directly or relayed by another member
      */
-    void systemClockSleep(int millis) {
-        Date start = new Date();
-        while ((new Date().getTime() - start.getTime()) < millis)
-            ;
-    }
-
-    void disseminate() throws IOException {
-        Server.writeToLog("Disseminating my list: " + Server.group.toString());
-        for (int i = 0; i < Server.group.size(); i++) {
-            String currentIP = Server.group.get(i);
-            if (!currentIP.equals(Server.ip)) {
-                socket.send(Server.memberListToPacketData(), currentIP, SocketHelper.CONNECT_PORT);
-            }
-        }
+    static boolean acked(String ip) {
+        return pending.remove(ip) != null;
     }
 
-}
-
-class AckThread extends FailureDetectionThread implements Runnable {
     @Override
     public void run() {
         try {
-            socket = new SocketHelper(SocketHelper.ACK_PORT);
+            socket = new SocketHelper(SocketHelper.PING_PORT);
+            ProtocolTimer.scheduleAtFixedRate(this::protocolPeriod, PROTOCOL_PERIOD);
             while (true) {
                 DatagramPacket packet = socket.receive();
                 String senderIP = packet.getAddress().getHostAddress();
-                socket.send("", senderIP, SocketHelper.PING_PORT);
-                if (!Server.group.contains(senderIP)) {
-                    Server.writeToLog("Got ping from someone not in my list: " + senderIP);
-                    Server.addToMemberList(senderIP);
-                    disseminate();
+                if (acked(senderIP)) {
+                    if (Server.DEBUG)
+                        Server.debug("Received ACK from: " + senderIP);
                 }
+                Gossip.receive(senderIP, SocketHelper.getStringFromPacket(packet));
             }
         } catch (IOException e) {
             Server.writeToLog(e);
@@ -806,43 +855,60 @@ class AckThread extends FailureDetectionThread implements Runnable {
     }
 }
 
-class PingThread extends FailureDetectionThread implements Runnable {
-    private int i = 0;
-
-    private String nextNeighbor() {
-        i = (i + 1) % neighbors.length;
-        int neighborIndex = (Server.group.indexOf(Server.ip) + neighbors[i]) % Server.group.size();
-        neighborIndex = indexWrap(neighborIndex);
-        return Server.group.get(neighborIndex);
-    }
-
-    private void pingNeighbor(String neighbor) throws IOException {
-        Server.writeToLog("Sending ping to: " + neighbor);
-        socket.send("", neighbor, SocketHelper.ACK_PORT);
-    }
+/*
+ * Serves SWIM ping-req: pings a target on behalf of a member whose own ping
+ * went unanswered and relays the ACK back to it. Also receives the ACKs
+ * relayed back for the indirect probes this node asked for.
+ */
+class IndirectProbeThread extends FailureDetectionThread implements Runnable {
+    static final String REQUEST = "REQ";
+    static final String RELAYED_ACK = "ACK";
+    // Members waiting for an ACK from each target we pinged for them, mapped to when they asked
+    private final ConcurrentHashMap<String, HashMap<String, Long>> requesters = new ConcurrentHashMap<>();
 
-    private void waitForACK(String neighbor) throws IOException {
-        try {
-            socket.receive(FAIL_TIME);
-            Server.writeToLog("Received ACK from: " + neighbor);
-        } catch (SocketTimeoutException e) {
-            Server.writeToLog(String.format("detected failure at: %s", neighbor));
-            Server.removeFromMemberList(neighbor);
-            disseminate();
-        }
+    /*
+     * The requester gives up on target FAIL_TIME after asking, so stop
+     * waiting to relay its ACK then, unless it has asked again since
+     */
+    private void expire(String target, String requester, long requestedAt) {
+        requesters.computeIfPresent(target, (k, waiting) -> {
+            waiting.remove(requester, requestedAt);
+            return waiting.isEmpty() ? null : waiting;
+        });
     }
 
     @Override
     public void run() {
         try {
-            socket = new SocketHelper(SocketHelper.PING_PORT);
+            socket = new SocketHelper(SocketHelper.INDIRECT_PORT);
             while (true) {
-                String neighbor = nextNeighbor();
-                if (!neighbor.equals(Server.ip)) {
-                    pingNeighbor(neighbor);
-                    waitForACK(neighbor);
+                DatagramPacket packet = socket.receive();
+                String senderIP = packet.getAddress().getHostAddress();
+                String data = SocketHelper.getStringFromPacket(packet);
+                String[] parts = data.split(" ");
+                if (parts[0].equals(REQUEST) && parts.length == 2) {
+                    String target = parts[1];
+                    long requestedAt = System.nanoTime();
+                    requesters.compute(target, (k, waiting) -> {
+                        if (waiting == null)
+                            waiting = new HashMap<>();
+                        waiting.put(senderIP, requestedAt);
+                        return waiting;
+                    });
+                    socket.send(Gossip.piggyback(), target, SocketHelper.ACK_PORT);
+                    ProtocolTimer.schedule(() -> expire(target, senderIP, requestedAt), FAIL_TIME);
+                } else if (parts[0].equals(RELAYED_ACK) && parts.length == 2) {
+                    if (PingThread.acked(parts[1]))
+                        Server.writeToLog(String.format("Received ACK from %s through %s", parts[1], senderIP));
+                } else {
+                    // ACK from a target we probed for someone else
+                    Gossip.receive(senderIP, data);
+                    HashMap<String, Long> waiting = requesters.remove(senderIP);
+                    if (waiting != null)
+                        for (String requester : waiting.keySet())
+                            socket.send(String.format("%s %s", RELAYED_ACK, senderIP), requester,
+                                    SocketHelper.INDIRECT_PORT);
                 }
-                systemClockSleep(PROTOCOL_PERIOD);
             }
         } catch (IOException e) {
             Server.writeToLog(e);
@@ -856,15 +922,25 @@ class IntroducerThread extends FailureDetectionThread implements Runnable {
         try {
             socket = new SocketHelper(SocketHelper.INTRODUCER_PORT);
             /*
-             * The introducer thread is on an infinite loop to accept single IP addresses,
-             * add them to its member list, and send out its updated member list to the
-             * entire group.
+             * The introducer thread is on an infinite loop to accept joining IP addresses
+             * with their incarnation, add them to its member list, and send the joiner a
+             * membership snapshot. The rest of the group hears about the join through
+             * gossip piggybacked on pings.
              */
             while (true) {
                 DatagramPacket packet = socket.receive();
-                String senderIP = SocketHelper.getStringFromPacket(packet);
-                Server.addToMemberList(senderIP);
-                disseminate();
+                String[] join = SocketHelper.getStringFromPacket(packet).split(Gossip.FIELD_DELIMITER);
+                String senderIP = join[0];
+                try {
+                    Gossip.alive(senderIP, join.length > 1 ? Long.parseLong(join[1]) : 0);
+                } catch (NumberFormatException e) {
+                    // One bad packet must not stop the introducer
+                    Server.writeToLog(AsyncLogger.Level.WARN, String.format("Malformed join from %s: %s",
+                            packet.getAddress().getHostAddress(), e.getMessage()));
+                    continue;
+                }
+                for (String snapshot : Gossip.snapshot())
+                    socket.send(snapshot, senderIP, SocketHelper.CONNECT_PORT);
             }
         } catch (IOException e) {
             Server.writeToLog(e);
@@ -878,9 +954,9 @@ class ConnectThread extends FailureDetectionThread implements Runnable {
         try {
             socket = new SocketHelper(SocketHelper.CONNECT_PORT);
             while (true) {
+                // Late packets of a membership snapshot
                 DatagramPacket packet = socket.receive();
-                String newList = SocketHelper.getStringFromPacket(packet);
-                Server.updateMemberList(newList.split(Server.IP_DELIMITER));
+                Gossip.applySnapshot(SocketHelper.getStringFromPacket(packet));
             }
         } catch (IOException e) {
             Server.writeToLog(e);
@@ -896,6 +972,7 @@ class SocketHelper {
     static final int INTRODUCER_PORT = 65006;
     static final int PING_PORT = 65007;
     static final int ACK_PORT = 65008;
+    static final int INDIRECT_PORT = 65009;
     Random random = new Random();
 
     private final int BUFFER_SIZE = 4096;
@@ -903,8 +980,8 @@ class SocketHelper {
     private byte[] buf = new byte[BUFFER_SIZE];
     private DatagramSocket socket;
 
-    SocketHelper(int port) throws SocketException {
-        socket = new DatagramSocket(port);
+    SocketHelper(int port) throws SocketException, UnknownHostException {
+        socket = new DatagramSocket(new InetSocketAddress(Server.getBindAddress(), port));
     }
 
     static String getStringFromPacket(DatagramPacket packet) {
@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Crane topology as it runs on one bolt. Each action can carry a
+ * parallelism hint, "action:N". Consecutive actions with the same
+ * parallelism form a stage, compiled into one Pipeline, and an action
+ * without a hint joins the stage before it. The first stage without any
+ * hint gets DEFAULT_PARALLELISM, the cores of the node.
+ *
+ * Each stage runs its parallelism in executor threads that take batches of
+ * tuples from the stage's bounded queue and hand their output, batched
+ * again, to the next stage's queue. The last stage writes to the bolt's
+ * output one batch at a time. A full queue blocks the stage before it, and
+ * in the end the thread reading tuples from the spout, so a slow stage
+ * pushes back on the spout instead of buffering.
+ *
+ * Operators, the tokens with an =, are not actions. An Aggregate asked for
+ * that way takes the place of the bolt's output for the last stage, whose
+ * executors each combine into their own state, and keyBy=F is for the
+ * spout, see CreditRouter.
+ */
+final class Topology {
+    static final int DEFAULT_PARALLELISM = Integer.getInteger("sdfs.craneParallelism",
+            Runtime.getRuntime().availableProcessors());
+    // Tuples handed from one stage to the next at once
+    static final int BATCH = 256;
+    // Batches waiting per executor of a stage
+    private static final int QUEUED = 4;
+    // Tells an executor its stage has no more input, compared by identity
+    private static final List<String> END = new ArrayList<>(0);
+
+    private final List<Stage> stages = new ArrayList<>();
+    private final Pipeline.Sink out;
+    // What the last stage feeds instead of out, null if the topology has no aggregation
+    private final Aggregate aggregate;
+    private final CountDownLatch done;
+    private final List<Thread> executors = new ArrayList<>();
+    private volatile Throwable failure;
+    // Tuples read from the spout, not yet handed to the first stage
+    private List<String> pending = new ArrayList<>(BATCH);
+
+    private final class Stage {
+        final int index;
+        final String[] actions;
+        final int parallelism;
+        final BlockingQueue<List<String>> queue;
+        final AtomicInteger running;
+
+        Stage(int index, String[] actions, int parallelism) {
+            this.index = index;
+            this.actions = actions;
+            this.parallelism = parallelism;
+            this.queue = new ArrayBlockingQueue<>(QUEUED * parallelism);
+            this.running = new AtomicInteger(parallelism);
+        }
+    }
+
+    /*
+     * spec is the topology's actions with their hints, out receives what
+     * comes out of the last stage and is only called by one thread at a time
+     */
+    Topology(String[] spec, Map<String, Method> actions, Pipeline.Sink out) {
+        this.out = out;
+        List<String> names = new ArrayList<>();
+        List<String> operators = new ArrayList<>();
+        int parallelism = 0;
+        for (String action : spec) {
+            if (action.indexOf('=') >= 0) {
+                operators.add(action);
+                continue;
+            }
+            int colon = action.indexOf(':');
+            int hint = colon < 0 ? parallelism : Integer.parseInt(action.substring(colon + 1));
+            if (hint < 0)
+                throw new IllegalArgumentException(String.format("Bad parallelism in %s", action));
+            if (hint == 0)
+                hint = DEFAULT_PARALLELISM;
+            if (hint != parallelism && !names.isEmpty()) {
+                stages.add(new Stage(stages.size(), names.toArray(new String[0]), parallelism));
+                names.clear();
+            }
+            parallelism = hint;
+            names.add(colon < 0 ? action : action.substring(0, colon));
+        }
+        stages.add(new Stage(stages.size(), names.toArray(new String[0]),
+                parallelism == 0 ? DEFAULT_PARALLELISM : parallelism));
+        aggregate = Aggregate.parse(operators, actions, out);
+        // Every executor is compiled before any starts, so a bad action fails the job up front
+        for (Stage stage : stages) {
+            for (int i = 0; i < stage.parallelism; i++) {
+                Thread thread = new Thread(new Executor(stage, actions),
+                        String.format("crane-stage-%d-%d", stage.index, i));
+                thread.setDaemon(true);
+                executors.add(thread);
+            }
+        }
+        done = new CountDownLatch(executors.size());
+        for (Thread thread : executors)
+            thread.start();
+    }
+
+    /*
+     * Executors of the first stage, what the spout weighs this bolt by
+     */
+    int parallelism() {
+        return stages.get(0).parallelism;
+    }
+
+    /*
+     * Field of the spout's tuples spec has them partitioned by, -1 if none
+     */
+    static int keyField(String[] spec) {
+        for (String operator : spec) {
+            if (!operator.startsWith("keyBy="))
+                continue;
+            int field = Integer.parseInt(operator.substring("keyBy=".length()));
+            if (field < 0)
+                throw new IllegalArgumentException(String.format("Bad field in %s", operator));
+            return field;
+        }
+        return -1;
+    }
+
+    /*
+     * Queues a tuple from the spout, blocks while the first stage is behind
+     */
+    void accept(String tuple) throws InterruptedException {
+        pending.add(tuple);
+        if (pending.size() >= BATCH) {
+            stages.get(0).queue.put(pending);
+            pending = new ArrayList<>(BATCH);
+        }
+    }
+
+    /*
+     * Runs the tuples queued so far to the end and stops the executors
+     */
+    void finish() throws IOException, InterruptedException {
+        Stage first = stages.get(0);
+        if (!pending.isEmpty())
+            first.queue.put(pending);
+        pending = new ArrayList<>(BATCH);
+        for (int i = 0; i < first.parallelism; i++)
+            first.queue.put(END);
+        done.await();
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure != null)
+            throw new IOException(String.format("Crane stage failed: %s", failure), failure);
+    }
+
+    /*
+     * Stops the executors of a job that ends without finish, e.g. because
+     * its spout went away
+     */
+    void stop() {
+        for (Thread thread : executors)
+            thread.interrupt();
+    }
+
+    /*
+     * One thread of a stage
+     */
+    private final class Executor implements Runnable {
+        final Stage stage;
+        final Stage next;
+        final Pipeline.Sink pipeline;
+        // State of the aggregation this executor of the last stage feeds, or null
+        final Aggregate.Combiner combiner;
+        // What the pipeline put out for the batch being run
+        List<String> output = new ArrayList<>(BATCH);
+
+        Executor(Stage stage, Map<String, Method> actions) {
+            this.stage = stage;
+            this.next = stage.index + 1 < stages.size() ? stages.get(stage.index + 1) : null;
+            this.combiner = next == null && aggregate != null ? aggregate.combiner() : null;
+            this.pipeline = Pipeline.compile(stage.actions, actions,
+                    combiner != null ? combiner : tuple -> output.add(tuple));
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    // An aggregating executor wakes up at the end of each window step to hand it in
+                    List<String> batch = combiner == null ? stage.queue.take()
+                            : stage.queue.poll(combiner.timeout(), TimeUnit.MILLISECONDS);
+                    if (batch == END)
+                        break;
+                    // After a failure the input is only drained, so no stage before this one blocks
+                    if (failure == null && batch != null)
+                        run(batch);
+                    if (failure == null && combiner != null)
+                        combine(false);
+                }
+                if (failure == null && combiner != null)
+                    combine(true);
+                // The last executor of a stage ends the next one
+                if (stage.running.decrementAndGet() == 0 && next != null) {
+                    for (int i = 0; i < next.parallelism; i++)
+                        next.queue.put(END);
+                }
+            } catch (InterruptedException e) {
+                fail(e);
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void run(List<String> batch) throws InterruptedException {
+            try {
+                for (String tuple : batch) {
+                    pipeline.accept(tuple);
+                    if (next != null && output.size() >= BATCH)
+                        handOff();
+                }
+                if (next != null) {
+                    if (!output.isEmpty())
+                        handOff();
+                } else if (combiner == null) {
+                    synchronized (out) {
+                        for (String tuple : output)
+                            out.accept(tuple);
+                    }
+                    output.clear();
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                fail(e);
+                Server.writeToLog(String.format("Crane stage %d %s failed: %s", stage.index,
+                        Arrays.toString(stage.actions), e));
+                output.clear();
+            }
+        }
+
+        /*
+         * Hands the combined tuples to the aggregate once their step is
+         * over, or at the end all of them
+         */
+        private void combine(boolean end) {
+            try {
+                if (end)
+                    combiner.finish();
+                else
+                    combiner.advance();
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                Server.writeToLog(String.format("Crane aggregation failed: %s", e));
+            }
+        }
+
+        private void handOff() throws InterruptedException {
+            next.queue.put(output);
+            output = new ArrayList<>(BATCH);
+        }
+    }
+
+    private void fail(Throwable e) {
+        if (failure == null)
+            failure = e;
+    }
+}
@@ -0,0 +1,697 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent, multiplexed connections between servers. Each peer is reached
+ * over one long-lived channel to PORT, which carries any number of concurrent
+ * calls as frames tagged with a call ID:
+ *
+ *   [int payload length][long call ID][byte type][payload]
+ *
+ * A call is a command line, optionally followed by a body streamed as DATA
+ * frames, and is answered with a one line REPLY or FAIL. Frames wait in a
+ * bounded send queue, so a caller that is faster than the link or the peer
+ * blocks instead of buffering without bound. Each body has its own window
+ * of BODY_QUEUE frames: the handler sends a WINDOW frame back for every
+ * DATA frame it takes, and the caller waits for one before sending more.
+ * The connection's reader so never waits on a slow handler, and one slow
+ * body does not hold up the other calls sharing the connection.
+ *
+ * Bodies sent from a file go from the file to the socket with transferTo,
+ * without passing through the heap.
+ */
+class Transport {
+    static final int PORT = FileHandler.PEER_PORT;
+    // Largest DATA payload, big files are interleaved with other calls at this granularity
+    static final int MAX_DATA = 256 * 1024;
+    static final int SEND_QUEUE = Integer.getInteger("sdfs.peerQueue", 64);
+    static final int BODY_QUEUE = 16;
+    static final int CONNECT_TIMEOUT = 2000;
+    // How long a call waits for its reply once the request has been sent
+    static final int TIMEOUT = Integer.getInteger("sdfs.peerTimeout", 30000);
+    private static final int HEADER = 13;
+    private static final int MAX_PAYLOAD = MAX_DATA + 4096;
+    private static final long QUEUE_POLL_MS = 100;
+
+    // Frame types
+    static final byte CALL = 1; // Call without a body
+    static final byte STREAM = 2; // Call followed by DATA frames and END
+    static final byte DATA = 3;
+    static final byte END = 4;
+    static final byte CANCEL = 5; // The caller gave up on a STREAM body
+    static final byte REPLY = 6;
+    static final byte FAIL = 7;
+    static final byte WINDOW = 8; // The handler took a DATA frame, the caller may send one more
+
+    interface Handler {
+        /*
+         * Serves one call and returns the reply line. body is empty for calls
+         * without one.
+         */
+        String handle(String peer, String[] args, InputStream body) throws IOException;
+    }
+
+    private static final ConcurrentHashMap<String, Handler> handlers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Object> dialLocks = new ConcurrentHashMap<>();
+    private static final AtomicLong ids = new AtomicLong();
+    // Handlers block on their bodies and on calls down a chain, so they get their own threads
+    private static final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "transport-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static void register(String command, Handler handler) {
+        handlers.put(command, handler);
+    }
+
+    /*
+     * Accepts connections from other servers on PORT
+     */
+    static void listen() throws IOException {
+        ServerSocket serverSocket = FileHandler.openServerSocket(PORT);
+        ServerSocketChannel channel = serverSocket.getChannel();
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    SocketChannel peer = channel.accept();
+                    peer.socket().setTcpNoDelay(true);
+                    String ip = ((InetSocketAddress) peer.getRemoteAddress()).getAddress().getHostAddress();
+                    // The peer sends its calls on this connection, so it is adopted even if we dialed it too
+                    adopt(new Connection(ip, peer, false));
+                } catch (IOException e) {
+                    Server.writeToLog(e);
+                }
+            }
+        }, "transport-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Server.writeToLog(String.format("Listening for peers on %d", PORT));
+    }
+
+    /*
+     * Drops connections to servers that left the group
+     */
+    static void prune(Membership view) {
+        for (Connection connection : connections.values()) {
+            if (!view.contains(connection.peer))
+                connection.close(new IOException(String.format("%s left the group", connection.peer)));
+        }
+    }
+
+    static String call(String ip, String command) throws IOException {
+        Call call = new Call(connect(ip), CALL);
+        call.start(command);
+        return call.finish();
+    }
+
+    static String call(String ip, String command, File body) throws IOException {
+        Call call = open(ip, command);
+        try (FileChannel in = FileChannel.open(body.toPath())) {
+            call.write(in);
+        } catch (IOException e) {
+            call.cancel();
+            throw e;
+        }
+        return call.finish();
+    }
+
+    /*
+     * Starts a call whose body the caller streams with write before calling finish
+     */
+    static Call open(String ip, String command) throws IOException {
+        Call call = new Call(connect(ip), STREAM);
+        call.start(command);
+        return call;
+    }
+
+    private static Connection connect(String ip) throws IOException {
+        Connection connection = connections.get(ip);
+        if (connection != null && connection.isOpen())
+            return connection;
+        synchronized (dialLocks.computeIfAbsent(ip, k -> new Object())) {
+            connection = connections.get(ip);
+            if (connection != null && connection.isOpen())
+                return connection;
+            SocketChannel channel = SocketChannel.open();
+            try {
+                // Peers tell connections apart by source address, which matters when several share a host
+                channel.bind(new InetSocketAddress(Server.getBindAddress(), 0));
+                channel.socket().connect(new InetSocketAddress(ip, PORT), CONNECT_TIMEOUT);
+                channel.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            connection = adopt(new Connection(ip, channel, true));
+            if (Server.DEBUG)
+                Server.debug(String.format("Opened peer connection to %s", ip));
+            return connection;
+        }
+    }
+
+    /*
+     * Makes connection the one calls to its peer go out on. Two servers that
+     * dial each other at once end up with two connections, so both keep the
+     * one the lower address dialed and retire the other. Otherwise a new
+     * connection replaces the old one, which its dialer has given up on.
+     * Returns the connection to call on.
+     */
+    private static Connection adopt(Connection connection) {
+        Connection[] retired = new Connection[1];
+        Connection kept = connections.compute(connection.peer, (peer, current) -> {
+            if (current != null && current.isOpen() && current.preferred() && !connection.preferred()) {
+                retired[0] = connection;
+                return current;
+            }
+            retired[0] = current;
+            return connection;
+        });
+        if (retired[0] != null)
+            retired[0].retire();
+        return kept;
+    }
+
+    private static ByteBuffer frame(byte type, long id, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER + length);
+        frame.putInt(length).putLong(id).put(type);
+        return frame;
+    }
+
+    private static ByteBuffer header(byte type, long id, int length) {
+        return ByteBuffer.allocate(HEADER).putInt(length).putLong(id).put(type).flip();
+    }
+
+    private static ByteBuffer frame(byte type, long id, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return frame(type, id, bytes.length).put(bytes).flip();
+    }
+
+    /*
+     * Outgoing call, waits for the peer's reply in finish
+     */
+    static final class Call {
+        private final Connection connection;
+        private final long id = ids.incrementAndGet();
+        private final byte type;
+        private final CountDownLatch done = new CountDownLatch(1);
+        // DATA frames the peer has room for
+        private final Semaphore window = new Semaphore(BODY_QUEUE);
+        private volatile boolean failed;
+        private volatile String reply;
+
+        private Call(Connection connection, byte type) {
+            this.connection = connection;
+            this.type = type;
+        }
+
+        private void start(String command) throws IOException {
+            connection.calls.put(id, this);
+            try {
+                connection.send(frame(type, id, command));
+            } catch (IOException e) {
+                connection.calls.remove(id);
+                throw e;
+            }
+        }
+
+        /*
+         * Appends the remaining bytes of src to the body
+         */
+        void write(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                if (!acquireWindow())
+                    return;
+                int length = Math.min(MAX_DATA, src.remaining());
+                ByteBuffer frame = frame(DATA, id, length);
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + length);
+                frame.put(slice).flip();
+                src.position(src.position() + length);
+                connection.send(frame);
+            }
+        }
+
+        /*
+         * Appends the rest of in to the body. The writer thread sends it
+         * straight from the file, so this waits until it has.
+         */
+        void write(FileChannel in) throws IOException {
+            long position = in.position();
+            long end = in.size();
+            FileFrame last = null;
+            while (position < end) {
+                if (!acquireWindow())
+                    break;
+                int length = (int) Math.min(MAX_DATA, end - position);
+                last = new FileFrame(header(DATA, id, length), in, position, length);
+                connection.send(last);
+                position += length;
+            }
+            in.position(position);
+            if (last == null)
+                return;
+            try {
+                while (!last.sent.await(QUEUE_POLL_MS, TimeUnit.MILLISECONDS)) {
+                    if (!connection.isOpen())
+                        break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (!connection.isOpen())
+                throw new IOException(String.format("Connection to %s closed: %s", connection.peer,
+                        connection.closed.getMessage()));
+        }
+
+        /*
+         * Waits until the peer has room for another DATA frame. Returns
+         * false if it already answered the call, the rest of the body is
+         * then not wanted.
+         */
+        private boolean acquireWindow() throws IOException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            try {
+                while (!window.tryAcquire(QUEUE_POLL_MS, TimeUnit.MILLISECONDS)) {
+                    if (done.getCount() == 0)
+                        return false;
+                    if (!connection.isOpen())
+                        throw new IOException(String.format("Connection to %s closed: %s", connection.peer,
+                                connection.closed.getMessage()));
+                    if (System.currentTimeMillis() > deadline) {
+                        cancel();
+                        throw new SocketTimeoutException(String.format("%s took no data for %d ms",
+                                connection.peer, TIMEOUT));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            return done.getCount() != 0;
+        }
+
+        /*
+         * Ends the body and waits for the reply. A FAIL reply is thrown.
+         */
+        String finish() throws IOException {
+            if (type == STREAM)
+                connection.send(frame(END, id, 0).flip());
+            try {
+                if (!done.await(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    connection.calls.remove(id);
+                    throw new SocketTimeoutException(String.format("No reply from %s", connection.peer));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                connection.calls.remove(id);
+                throw new InterruptedIOException();
+            }
+            if (failed)
+                throw new IOException(reply);
+            return reply;
+        }
+
+        /*
+         * Abandons the call, the peer's handler sees its body end with an error
+         */
+        void cancel() {
+            connection.calls.remove(id);
+            try {
+                connection.send(frame(CANCEL, id, 0).flip());
+            } catch (IOException e) {
+                // The connection is gone, which cancels the call just the same
+            }
+        }
+
+        private void complete(boolean failed, String reply) {
+            this.failed = failed;
+            this.reply = reply;
+            done.countDown();
+        }
+    }
+
+    /*
+     * DATA frame sent from a file by the writer thread, which counts down
+     * sent once it is done with it
+     */
+    private static final class FileFrame {
+        final ByteBuffer header;
+        final FileChannel in;
+        final CountDownLatch sent = new CountDownLatch(1);
+        private long position;
+        private long remaining;
+
+        FileFrame(ByteBuffer header, FileChannel in, long position, long length) {
+            this.header = header;
+            this.in = in;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        void send(SocketChannel channel) throws IOException {
+            try {
+                while (header.hasRemaining())
+                    channel.write(header);
+                while (remaining > 0) {
+                    long count = in.transferTo(position, remaining, channel);
+                    // The header promised the bytes, the connection can not go on without them
+                    if (count == 0 && position >= in.size())
+                        throw new EOFException("File shrank while it was being sent");
+                    position += count;
+                    remaining -= count;
+                }
+            } finally {
+                sent.countDown();
+            }
+        }
+    }
+
+    /*
+     * Body of an incoming STREAM call, fed by the connection's reader
+     */
+    private static final class Body extends InputStream {
+        private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+        private final Connection connection;
+        private final long id;
+        // The caller sends at most BODY_QUEUE frames ahead, and then END
+        private final ArrayBlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<>(BODY_QUEUE + 1);
+        private ByteBuffer current;
+        private volatile IOException error;
+        private volatile boolean discarded;
+
+        Body(Connection connection, long id) {
+            this.connection = connection;
+            this.id = id;
+        }
+
+        /*
+         * Never blocks, the caller's window leaves room for every frame
+         */
+        void offer(ByteBuffer chunk) {
+            if (!discarded && !chunks.offer(chunk))
+                fail(new IOException(String.format("%s sent past the body window", connection.peer)));
+        }
+
+        void fail(IOException e) {
+            error = e;
+            chunks.clear();
+            chunks.offer(EOF);
+        }
+
+        void discard() {
+            discarded = true;
+            chunks.clear();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (current == null || !current.hasRemaining()) {
+                if (current == EOF) {
+                    if (error != null)
+                        throw error;
+                    return -1;
+                }
+                try {
+                    current = chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (current != EOF)
+                    connection.grant(id);
+            }
+            int count = Math.min(len, current.remaining());
+            current.get(b, off, count);
+            return count;
+        }
+    }
+
+    private static final class Connection {
+        final String peer;
+        private final SocketChannel channel;
+        // ByteBuffer and FileFrame frames, in the order they go out
+        private final ArrayBlockingQueue<Object> outbound = new ArrayBlockingQueue<>(SEND_QUEUE);
+        // Our calls waiting for a reply, and the bodies of calls we are serving
+        final ConcurrentHashMap<Long, Call> calls = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<Long, Body> bodies = new ConcurrentHashMap<>();
+        // Calls from the peer that have not been answered yet
+        private final AtomicInteger serving = new AtomicInteger();
+        // We dialed it rather than accepted it
+        private final boolean dialed;
+        private volatile IOException closed;
+
+        Connection(String peer, SocketChannel channel, boolean dialed) {
+            this.peer = peer;
+            this.channel = channel;
+            this.dialed = dialed;
+            Thread reader = new Thread(this::read, "transport-reader-" + peer);
+            Thread writer = new Thread(this::write, "transport-writer-" + peer);
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        boolean isOpen() {
+            return closed == null;
+        }
+
+        /*
+         * Whether both ends keep this one when each dialed the other
+         */
+        boolean preferred() {
+            return dialed == (Server.ip.compareTo(peer) < 0);
+        }
+
+        /*
+         * Lost to another connection to the same peer: no new calls go out on
+         * it from either end, and it is closed once the calls still on it are
+         * done
+         */
+        void retire() {
+            ProtocolTimer.schedule(() -> {
+                if (!isOpen())
+                    return;
+                if (calls.isEmpty() && serving.get() == 0 && outbound.isEmpty())
+                    close(new IOException("replaced by another connection"));
+                else
+                    retire();
+            }, TIMEOUT);
+        }
+
+        /*
+         * Queues a frame, blocking while the send queue is full
+         */
+        void send(Object frame) throws IOException {
+            try {
+                while (!outbound.offer(frame, QUEUE_POLL_MS, TimeUnit.MILLISECONDS)) {
+                    if (closed != null)
+                        break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (closed != null)
+                throw new IOException(String.format("Connection to %s closed: %s", peer, closed.getMessage()));
+        }
+
+        /*
+         * Lets the caller of call id send one more DATA frame
+         */
+        void grant(long id) {
+            try {
+                send(frame(WINDOW, id, 0).flip());
+            } catch (IOException e) {
+                // The connection is gone, and the call with it
+            }
+        }
+
+        /*
+         * Writes queued frames, batching whatever has piled up into one
+         * gathering write. Frames from a file go out on their own.
+         */
+        private void write() {
+            ArrayList<Object> batch = new ArrayList<>();
+            ArrayList<ByteBuffer> buffers = new ArrayList<>();
+            try {
+                while (closed == null) {
+                    Object first = outbound.poll(QUEUE_POLL_MS, TimeUnit.MILLISECONDS);
+                    if (first == null)
+                        continue;
+                    batch.add(first);
+                    outbound.drainTo(batch, 15);
+                    for (Object frame : batch) {
+                        if (frame instanceof ByteBuffer) {
+                            buffers.add((ByteBuffer) frame);
+                            continue;
+                        }
+                        writeAll(buffers);
+                        ((FileFrame) frame).send(channel);
+                    }
+                    writeAll(buffers);
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                close(e);
+            } catch (InterruptedException e) {
+                close(new InterruptedIOException());
+            }
+        }
+
+        private void writeAll(ArrayList<ByteBuffer> buffers) throws IOException {
+            if (buffers.isEmpty())
+                return;
+            ByteBuffer[] array = buffers.toArray(new ByteBuffer[0]);
+            ByteBuffer last = array[array.length - 1];
+            while (last.hasRemaining())
+                channel.write(array);
+            buffers.clear();
+        }
+
+        private void read() {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            try {
+                while (true) {
+                    header.clear();
+                    readFully(header);
+                    int length = header.getInt(0);
+                    long id = header.getLong(4);
+                    byte type = header.get(12);
+                    if (length < 0 || length > MAX_PAYLOAD)
+                        throw new IOException(String.format("Bad frame of %d bytes from %s", length, peer));
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    readFully(payload);
+                    payload.flip();
+                    dispatch(type, id, payload);
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    throw new EOFException(String.format("%s closed the connection", peer));
+            }
+        }
+
+        private void dispatch(byte type, long id, ByteBuffer payload) {
+            Body body;
+            Call call;
+            switch (type) {
+            case CALL:
+            case STREAM:
+                body = type == STREAM ? new Body(this, id) : null;
+                if (body != null)
+                    bodies.put(id, body);
+                String command = StandardCharsets.UTF_8.decode(payload).toString();
+                serving.incrementAndGet();
+                workers.execute(() -> serve(id, command, body));
+                break;
+            case DATA:
+                body = bodies.get(id);
+                if (body != null)
+                    body.offer(payload);
+                break;
+            case END:
+                body = bodies.get(id);
+                if (body != null)
+                    body.offer(Body.EOF);
+                break;
+            case CANCEL:
+                body = bodies.remove(id);
+                if (body != null)
+                    body.fail(new EOFException(String.format("%s cancelled the call", peer)));
+                break;
+            case WINDOW:
+                call = calls.get(id);
+                if (call != null)
+                    call.window.release();
+                break;
+            case REPLY:
+            case FAIL:
+                call = calls.remove(id);
+                if (call != null)
+                    call.complete(type == FAIL, StandardCharsets.UTF_8.decode(payload).toString());
+                break;
+            default:
+                Server.writeToLog(String.format("Ignoring frame of unknown type %d from %s", type, peer));
+                break;
+            }
+        }
+
+        private void serve(long id, String command, Body body) {
+            byte type = REPLY;
+            String reply;
+            try {
+                String[] args = command.split(" ");
+                Handler handler = handlers.get(args[0]);
+                if (handler == null)
+                    throw new IOException(String.format("No handler for %s", args[0]));
+                reply = handler.handle(peer, args, body != null ? body : InputStream.nullInputStream());
+            } catch (Exception e) {
+                Server.writeToLog(e);
+                type = FAIL;
+                reply = String.valueOf(e.getMessage());
+            } finally {
+                if (body != null) {
+                    bodies.remove(id);
+                    body.discard();
+                }
+            }
+            try {
+                send(frame(type, id, reply));
+            } catch (IOException e) {
+                Server.writeToLog(String.format("Could not reply to %s: %s", peer, e.getMessage()));
+            } finally {
+                serving.decrementAndGet();
+            }
+        }
+
+        void close(IOException cause) {
+            synchronized (this) {
+                if (closed != null)
+                    return;
+                closed = cause;
+            }
+            Server.writeToLog(String.format("Closed peer connection to %s: %s", peer, cause.getMessage()));
+            connections.remove(peer, this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closing
+            }
+            for (Call call : calls.values())
+                call.complete(true, String.format("Connection to %s closed: %s", peer, cause.getMessage()));
+            calls.clear();
+            for (Body body : bodies.values())
+                body.fail(cause);
+            bodies.clear();
+            outbound.clear();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Binary wire format for Crane tuples from the spout to the bolts. Each
+ * tuple is its UTF-8 bytes behind their length, and tuples are packed into
+ * batches of up to BATCH bytes:
+ *
+ *   [int batch length][int tuple length][tuple bytes][int tuple length]...
+ *
+ * so a batch is one write and one read however many tuples it holds. A
+ * batch of length 0 ends the stream. Going the other way, the reader hands
+ * back a credit, an int 1, for each batch it has read, which the spout's
+ * CreditRouter sends batches against. Both ends stage batches in direct
+ * buffers from a shared pool, so a job does not allocate one per batch and
+ * the bytes go to and from the socket without another copy.
+ */
+class Tuples {
+    static final int BATCH = Integer.getInteger("sdfs.craneBatch", 64 * 1024);
+    // Buffers kept for reuse, enough for a spout writing to a full cluster
+    private static final int POOL = 64;
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+
+    private static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(BATCH);
+    }
+
+    private static void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == BATCH && pool.size() < POOL)
+            pool.offer(buffer);
+    }
+
+    /*
+     * Batches tuples onto a channel. A batch goes out when the next tuple
+     * does not fit, on flush, and on close.
+     */
+    static final class Writer implements Closeable {
+        private final WritableByteChannel channel;
+        private ByteBuffer buffer = acquire();
+        private long tuples;
+        private long bytes;
+
+        Writer(WritableByteChannel channel) {
+            this.channel = channel;
+            buffer.position(4);
+        }
+
+        void write(String tuple) throws IOException {
+            write(tuple.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /*
+         * Same, for a tuple already encoded as UTF-8
+         */
+        void write(byte[] encoded) throws IOException {
+            if (buffer.remaining() < 4 + encoded.length)
+                flush();
+            if (buffer.remaining() < 4 + encoded.length) {
+                // Larger than a batch, goes out on its own
+                ByteBuffer large = ByteBuffer.allocate(8 + encoded.length);
+                large.putInt(4 + encoded.length).putInt(encoded.length).put(encoded).flip();
+                writeFully(large);
+            } else {
+                buffer.putInt(encoded.length).put(encoded);
+            }
+            tuples++;
+        }
+
+        void flush() throws IOException {
+            int length = buffer.position() - 4;
+            if (length == 0)
+                return;
+            buffer.putInt(0, length).flip();
+            writeFully(buffer);
+            buffer.clear().position(4);
+        }
+
+        private void writeFully(ByteBuffer data) throws IOException {
+            bytes += data.remaining();
+            while (data.hasRemaining())
+                channel.write(data);
+        }
+
+        long tuples() {
+            return tuples;
+        }
+
+        long bytes() {
+            return bytes;
+        }
+
+        /*
+         * Sends what is batched and the end of the stream. The channel stays
+         * open.
+         */
+        @Override
+        public void close() throws IOException {
+            if (buffer == null)
+                return;
+            try {
+                flush();
+                buffer.clear().putInt(0).flip();
+                writeFully(buffer);
+            } finally {
+                release(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    /*
+     * Reads tuples batched by a Writer, one batch per read from the channel
+     */
+    static final class Reader implements Closeable {
+        private final ReadableByteChannel channel;
+        private final WritableByteChannel credits;
+        private final ByteBuffer credit = ByteBuffer.allocate(4);
+        private ByteBuffer pooled = acquire();
+        private ByteBuffer batch = pooled.limit(0);
+        private byte[] scratch = new byte[256];
+        private boolean started;
+        private boolean ended;
+
+        Reader(ReadableByteChannel channel) {
+            this(channel, null);
+        }
+
+        /*
+         * Hands a credit back on credits for every batch once all of its
+         * tuples have been read
+         */
+        Reader(ReadableByteChannel channel, WritableByteChannel credits) {
+            this.channel = channel;
+            this.credits = credits;
+        }
+
+        /*
+         * The next tuple, or null at the end of the stream
+         */
+        String read() throws IOException {
+            if (!batch.hasRemaining() && !next())
+                return null;
+            int length = batch.getInt();
+            if (scratch.length < length)
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            batch.get(scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private boolean next() throws IOException {
+            if (ended)
+                return false;
+            if (started && credits != null) {
+                credit.clear().putInt(1).flip();
+                while (credit.hasRemaining())
+                    credits.write(credit);
+            }
+            started = true;
+            ByteBuffer header = pooled.clear().limit(4);
+            // A writer that went away between batches ends the stream like a close
+            if (!fill(header, true)) {
+                ended = true;
+                return false;
+            }
+            int length = header.getInt(0);
+            if (length == 0) {
+                ended = true;
+                return false;
+            }
+            batch = length <= pooled.capacity() ? pooled.clear().limit(length) : ByteBuffer.allocate(length);
+            fill(batch, false);
+            batch.flip();
+            return true;
+        }
+
+        /*
+         * Reads until buffer is full. Returns false on the end of the channel
+         * before the first byte if that is allowed.
+         */
+        private boolean fill(ByteBuffer buffer, boolean mayEnd) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    if (mayEnd && buffer.position() == 0)
+                        return false;
+                    throw new EOFException("Tuple stream cut off mid-batch");
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            if (pooled != null)
+                release(pooled);
+            pooled = null;
+        }
+    }
+}
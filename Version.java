@@ -0,0 +1,43 @@
+/**
+ * One version of an SDFS file: its number, which only ever grows per file
+ * on this node, its size, the digest of its manifest, when it was stored and
+ * the CRC32C of its bytes. Numbers can differ between replicas that missed a
+ * version, so replicas compare versions by stamp, which the head of the put
+ * assigns and every replica keeps.
+ */
+final class Version {
+    final long number;
+    final long size;
+    final String digest;
+    final long created;
+    final long stamp;
+    // null only while load() reads an index from before checksums
+    final Integer checksum;
+
+    Version(long number, long size, String digest, long created, long stamp, Integer checksum) {
+        this.number = number;
+        this.size = size;
+        this.digest = digest;
+        this.created = created;
+        this.stamp = stamp;
+        this.checksum = checksum;
+    }
+
+    Version withChecksum(int checksum) {
+        return new Version(number, size, digest, created, stamp, checksum);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d %d %s %d %d %08x", number, size, digest, created, stamp, checksum);
+    }
+
+    static Version parse(String line) {
+        String[] fields = line.split(" ");
+        long created = Long.parseLong(fields[3]);
+        // Indexes written before stamps or checksums existed
+        long stamp = fields.length > 4 ? Long.parseLong(fields[4]) : created;
+        Integer checksum = fields.length > 5 ? Integer.parseUnsignedInt(fields[5], 16) : null;
+        return new Version(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2], created, stamp, checksum);
+    }
+}
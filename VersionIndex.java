@@ -0,0 +1,289 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Versions of every SDFS file this node stores, oldest first. Each file is
+ * an immutable VersionList that is swapped in whole on put and delete, so
+ * lookups never lock or touch the disk. The list is persisted as INDEX_FILE
+ * next to the file's manifests, which are named by version number, and read
+ * back by load() at startup.
+ *
+ * A deleted file leaves a tombstone, the stamp it was deleted at, so that
+ * replicas comparing their files can tell a delete they missed from a
+ * version they missed. Tombstones are kept in TOMBSTONE_FILE, so a restart
+ * does not bring a deleted file back, and are dropped after a while by
+ * purgeTombstones.
+ */
+class VersionIndex {
+    static final String INDEX_FILE = "versions";
+    // "<stamp> <filename>" per tombstone, beside the file directories so it can not clash with one
+    static final String TOMBSTONE_FILE = "sdfs-tombstones";
+    private static final ConcurrentHashMap<String, VersionList> files = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Long> tombstones = new ConcurrentHashMap<>();
+    // Puts and deletes of one file take turns, lookups never wait
+    private static final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+    // Bumped by every add and remove, so views derived from the index know when to rebuild
+    private static final AtomicLong changes = new AtomicLong();
+
+    static Path getFileDirectory(String filename) {
+        return Paths.get(FileHandler.getFilePath(filename));
+    }
+
+    static Path getManifestPath(String filename, Version version) {
+        return getFileDirectory(filename).resolve(Long.toString(version.number));
+    }
+
+    private static Path getTombstonePath() {
+        return Paths.get(System.getProperty(FileHandler.USER_DIR), TOMBSTONE_FILE);
+    }
+
+    /*
+     * Reads every file's index. Manifests a crash left out of an index, and
+     * directories from before the index existed, are adopted in version
+     * order, by number where they have one and by age otherwise.
+     */
+    static void load() throws IOException {
+        Path root = Paths.get(FileHandler.getDirectoryPath());
+        Files.createDirectories(root);
+        files.clear();
+        tombstones.clear();
+        Path saved = getTombstonePath();
+        if (Files.exists(saved)) {
+            for (String line : Files.readAllLines(saved, StandardCharsets.UTF_8)) {
+                int space = line.indexOf(' ');
+                if (space > 0)
+                    tombstones.put(line.substring(space + 1), Long.parseLong(line.substring(0, space)));
+            }
+        }
+        int adopted = 0;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root)) {
+            for (Path dir : dirs) {
+                if (!Files.isDirectory(dir))
+                    continue;
+                String filename = dir.getFileName().toString();
+                Path index = dir.resolve(INDEX_FILE);
+                VersionList list = Files.exists(index) ? VersionList.read(index) : VersionList.EMPTY;
+
+                List<Path> unindexed = new ArrayList<>();
+                try (Stream<Path> entries = Files.list(dir)) {
+                    entries.filter(p -> !p.getFileName().toString().equals(INDEX_FILE)).forEach(unindexed::add);
+                }
+                List<Version> kept = new ArrayList<>();
+                for (Version version : list.versions) {
+                    Path manifest = getManifestPath(filename, version);
+                    if (unindexed.remove(manifest))
+                        // Indexes from before checksums get them once
+                        kept.add(version.checksum != null ? version
+                                : version.withChecksum(Manifest.read(manifest).checksum()));
+                    else
+                        Server.writeToLog(String.format("Dropping version %d of %s, its manifest is missing",
+                                version.number, filename));
+                }
+                list = new VersionList(kept);
+                unindexed.sort(Comparator.comparingLong(VersionIndex::ageOrder));
+                for (Path path : unindexed) {
+                    Manifest manifest;
+                    try {
+                        manifest = Manifest.read(path);
+                    } catch (IOException e) {
+                        Server.writeToLog(String.format("Skipping %s, it is not a version manifest", path));
+                        continue;
+                    }
+                    long modified = Files.getLastModifiedTime(path).toMillis();
+                    Version version = new Version(list.nextNumber(), manifest.size, manifest.digest(), modified,
+                            list.nextStamp(modified), manifest.checksum());
+                    Files.move(path, getManifestPath(filename, version), StandardCopyOption.ATOMIC_MOVE);
+                    list = list.with(version);
+                    adopted++;
+                }
+                if (list.versions.isEmpty()) {
+                    Files.deleteIfExists(index);
+                    Files.deleteIfExists(dir);
+                    continue;
+                }
+                list.write(index);
+                files.put(filename, list);
+            }
+        }
+        // A crash between saving a tombstone and removing the file leaves both, the delete is finished here
+        for (String filename : new ArrayList<>(tombstones.keySet())) {
+            Version latest = get(filename).latest();
+            if (latest == null)
+                continue;
+            if (latest.stamp > getTombstone(filename)) {
+                tombstones.remove(filename);
+            } else {
+                Server.writeToLog(String.format("Finishing the delete of %s", filename));
+                remove(filename, -1);
+            }
+        }
+        writeTombstones();
+        Server.writeToLog(String.format("Loaded versions of %d files, adopted %d unindexed manifests", files.size(),
+                adopted));
+    }
+
+    /*
+     * Numbered manifests sort by number ahead of legacy ones, which sort by age
+     */
+    private static long ageOrder(Path path) {
+        try {
+            return Long.parseLong(path.getFileName().toString()) - Long.MAX_VALUE / 2;
+        } catch (NumberFormatException e) {
+            return path.toFile().lastModified();
+        }
+    }
+
+    static Set<String> getFilenames() {
+        return Collections.unmodifiableSet(files.keySet());
+    }
+
+    static boolean contains(String filename) {
+        return files.containsKey(filename);
+    }
+
+    static VersionList get(String filename) {
+        return files.getOrDefault(filename, VersionList.EMPTY);
+    }
+
+    static long changes() {
+        return changes.get();
+    }
+
+    /*
+     * Stamp filename was deleted at, -1 if it has no tombstone
+     */
+    static long getTombstone(String filename) {
+        return tombstones.getOrDefault(filename, -1L);
+    }
+
+    static Set<String> getTombstones() {
+        return Collections.unmodifiableSet(tombstones.keySet());
+    }
+
+    static void purgeTombstones(long olderThan) {
+        if (tombstones.values().removeIf(stamp -> stamp < olderThan)) {
+            changes.incrementAndGet();
+            try {
+                writeTombstones();
+            } catch (IOException e) {
+                Server.writeToLog(e);
+            }
+        }
+    }
+
+    /*
+     * Replaces TOMBSTONE_FILE with the tombstones there are now
+     */
+    private static void writeTombstones() throws IOException {
+        synchronized (tombstones) {
+            StringBuilder sb = new StringBuilder();
+            tombstones.forEach((filename, stamp) -> sb.append(stamp).append(' ').append(filename).append('\n'));
+            Path tmp = ChunkStore.newTemporaryPath();
+            Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, getTombstonePath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /*
+     * Moves a written manifest in as the newest version of filename, stamped
+     * here
+     */
+    static Version add(String filename, Path manifestFile, Manifest manifest) throws IOException {
+        return add(filename, manifestFile, manifest, 0);
+    }
+
+    /*
+     * Same, with the stamp the version was given where it was written. The
+     * stamp never goes backwards, even if stamps arrive out of order.
+     */
+    static Version add(String filename, Path manifestFile, Manifest manifest, long stamp) throws IOException {
+        synchronized (locks.computeIfAbsent(filename, k -> new Object())) {
+            return addLocked(filename, manifestFile, manifest, stamp);
+        }
+    }
+
+    /*
+     * Adds a version copied from another replica, unless it is already here
+     * with the same stamp or a delete after it is. Replicas can be sent the
+     * same version by more than one node at once, the check and the add are
+     * one step so only one of them lands. Returns null if it was not added.
+     */
+    static Version addReplica(String filename, Path manifestFile, Manifest manifest, long stamp) throws IOException {
+        synchronized (locks.computeIfAbsent(filename, k -> new Object())) {
+            if (stamp <= getTombstone(filename))
+                return null;
+            String digest = manifest.digest();
+            for (Version version : get(filename).versions) {
+                if (version.stamp == stamp && version.digest.equals(digest))
+                    return null;
+            }
+            return addLocked(filename, manifestFile, manifest, stamp);
+        }
+    }
+
+    private static Version addLocked(String filename, Path manifestFile, Manifest manifest, long stamp)
+            throws IOException {
+        VersionList current = get(filename);
+        long now = System.currentTimeMillis();
+        Version version = new Version(current.nextNumber(), manifest.size, manifest.digest(), now,
+                current.nextStamp(stamp), manifest.checksum());
+        Path dir = getFileDirectory(filename);
+        Files.createDirectories(dir);
+        Files.move(manifestFile, getManifestPath(filename, version), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        VersionList next = current.with(version);
+        next.write(dir.resolve(INDEX_FILE));
+        files.put(filename, next);
+        if (tombstones.remove(filename) != null)
+            writeTombstones();
+        changes.incrementAndGet();
+        return version;
+    }
+
+    /*
+     * Removes filename and returns the manifests its versions had, leaving a
+     * tombstone stamped tombstone unless it is negative. The directory is
+     * moved aside in one step first, so a crash midway can not bring back
+     * part of the file.
+     */
+    static List<Manifest> remove(String filename, long tombstone) throws IOException {
+        synchronized (locks.computeIfAbsent(filename, k -> new Object())) {
+            VersionList removed = files.remove(filename);
+            // Saved before the file goes, load() finishes a delete a crash cut short
+            if (tombstone >= 0) {
+                tombstones.merge(filename, tombstone, Math::max);
+                writeTombstones();
+            }
+            changes.incrementAndGet();
+            List<Manifest> manifests = new ArrayList<>();
+            Path dir = getFileDirectory(filename);
+            if (!Files.isDirectory(dir))
+                return manifests;
+            Path trash = ChunkStore.newTemporaryPath();
+            Files.move(dir, trash, StandardCopyOption.ATOMIC_MOVE);
+            if (removed != null) {
+                for (Version version : removed.versions) {
+                    Path manifest = trash.resolve(Long.toString(version.number));
+                    manifests.add(Manifest.read(manifest));
+                    Files.delete(manifest);
+                }
+            }
+            try (Stream<Path> rest = Files.list(trash)) {
+                for (Path path : (Iterable<Path>) rest::iterator)
+                    Files.delete(path);
+            }
+            Files.delete(trash);
+            return manifests;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable list of the versions of one file, oldest first
+ */
+final class VersionList {
+    static final String HEADER = "sdfs-versions 1";
+    static final VersionList EMPTY = new VersionList(new ArrayList<>());
+
+    final List<Version> versions;
+
+    VersionList(List<Version> versions) {
+        this.versions = Collections.unmodifiableList(versions);
+    }
+
+    int size() {
+        return versions.size();
+    }
+
+    Version get(int index) {
+        return versions.get(index);
+    }
+
+    Version latest() {
+        return versions.isEmpty() ? null : versions.get(versions.size() - 1);
+    }
+
+    long nextNumber() {
+        return versions.isEmpty() ? 1 : latest().number + 1;
+    }
+
+    /*
+     * Stamp for a new version: the proposed one, or the current time when
+     * none is proposed, but always past the newest stamp already here
+     */
+    long nextStamp(long proposed) {
+        long stamp = proposed > 0 ? proposed : System.currentTimeMillis();
+        return versions.isEmpty() ? stamp : Math.max(stamp, latest().stamp + 1);
+    }
+
+    VersionList with(Version version) {
+        List<Version> next = new ArrayList<>(versions);
+        next.add(version);
+        return new VersionList(next);
+    }
+
+    static VersionList read(Path path) throws IOException {
+        List<String> lines = Files.readAllLines(path, StandardCharsets.US_ASCII);
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER))
+            throw new IOException(String.format("%s is not a version index", path));
+        List<Version> versions = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (!line.isEmpty())
+                versions.add(Version.parse(line));
+        }
+        return new VersionList(versions);
+    }
+
+    /*
+     * Replaced in one step, like manifests, so the index on disk is always
+     * either the old or the new list
+     */
+    void write(Path path) throws IOException {
+        StringBuilder sb = new StringBuilder(HEADER).append('\n');
+        for (Version version : versions)
+            sb.append(version).append('\n');
+        Path tmp = ChunkStore.newTemporaryPath();
+        Files.write(tmp, sb.toString().getBytes(StandardCharsets.US_ASCII));
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
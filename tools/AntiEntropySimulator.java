@@ -0,0 +1,80 @@
+import java.util.*;
+
+/**
+ * Simulates one anti-entropy round between two replicas of the same files
+ * that disagree on a few of them, through the same request and reply
+ * encoding the servers use. Reports the bytes exchanged by the Merkle tree
+ * descent against sending the whole file list, and checks the descent finds
+ * exactly the files that differ.
+ *
+ * make && javac -cp . -d . tools/AntiEntropySimulator.java
+ * java AntiEntropySimulator [files]
+ */
+public class AntiEntropySimulator {
+    private static final int[] DIVERGENCE = { 0, 1, 10, 100, 1000, 10000 };
+
+    public static void main(String[] args) throws Exception {
+        int numFiles = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Random random = new Random(428);
+        Map<String, String> entries = new HashMap<>();
+        long listing = 0;
+        for (int i = 0; i < numFiles; i++) {
+            String name = String.format("file-%d.txt", i);
+            String entry = String.format("%d %016x", 1790000000000L + i, random.nextLong());
+            entries.put(name, entry);
+            listing += name.length() + entry.length() + 2;
+        }
+        MerkleTree mine = new MerkleTree(entries);
+
+        System.out.printf("%d files, %d leaves, whole list %d KB%n", numFiles, MerkleTree.LEAVES, listing >> 10);
+        System.out.printf("%8s %8s %8s %12s %10s %8s%n", "differ", "leaves", "calls", "bytes", "vs list", "ms");
+        for (int d : DIVERGENCE) {
+            if (d > numFiles)
+                break;
+            // The peer is behind on d files: older stamps, missing ones, and deletes it saw
+            Map<String, String> theirs = new HashMap<>(entries);
+            Set<String> expected = new HashSet<>();
+            List<String> names = new ArrayList<>(entries.keySet());
+            Collections.shuffle(names, random);
+            for (int i = 0; i < d; i++) {
+                String name = names.get(i);
+                expected.add(name);
+                switch (i % 3) {
+                case 0:
+                    theirs.put(name, String.format("%d %016x", 1780000000000L + i, random.nextLong()));
+                    break;
+                case 1:
+                    theirs.remove(name);
+                    break;
+                default:
+                    theirs.put(name, String.format("%d -", 1800000000000L + i));
+                    break;
+                }
+            }
+            MerkleTree peer = new MerkleTree(theirs);
+
+            long[] exchanged = new long[2];
+            AntiEntropy.Remote remote = command -> {
+                String[] parts = command.split(" ");
+                String reply = parts[0].equals(AntiEntropy.HASHES) ? AntiEntropy.serveHashes(peer, parts)
+                        : AntiEntropy.serveLeaves(peer, parts);
+                exchanged[0]++;
+                exchanged[1] += command.length() + reply.length();
+                return reply;
+            };
+            long start = System.nanoTime();
+            List<Integer> leaves = AntiEntropy.differingLeaves(mine, remote);
+            Map<String, String> remoteEntries = AntiEntropy.fetchLeaves(leaves, remote);
+            Map<String, String> localEntries = mine.entries(leaves);
+            long elapsed = System.nanoTime() - start;
+
+            Set<String> found = new HashSet<>(localEntries.keySet());
+            found.addAll(remoteEntries.keySet());
+            found.removeIf(name -> Objects.equals(localEntries.get(name), remoteEntries.get(name)));
+            if (!found.equals(expected))
+                throw new AssertionError(String.format("%d differing files, found %d", expected.size(), found.size()));
+            System.out.printf("%8d %8d %8d %12d %9.2f%% %8.1f%n", d, leaves.size(), exchanged[0], exchanged[1],
+                    100.0 * exchanged[1] / listing, elapsed / 1e6);
+        }
+    }
+}
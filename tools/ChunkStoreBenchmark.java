@@ -0,0 +1,122 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Stores successive versions of one file that differ by a few small edits,
+ * the way puts reach a replica, and compares the disk used by whole-file
+ * copies per version with the ChunkStore. Also reports the bytes
+ * re-replication sends to a replica that already holds the previous version,
+ * checks every version reassembles byte for byte and that delete leaves no
+ * chunks behind.
+ *
+ * make && javac -cp . -d . tools/ChunkStoreBenchmark.java
+ * java ChunkStoreBenchmark [size in MB] [versions] [edits per version]
+ */
+public class ChunkStoreBenchmark {
+    private static final int EDIT_SIZE = 4096;
+    private static final int WRITE_BUFFER = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int versions = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int edits = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        Path dir = Files.createTempDirectory("chunk-bench");
+        System.setProperty(FileHandler.USER_DIR, dir.toString());
+        Random random = new Random(42);
+        String name = "bench-file";
+
+        byte[] data = new byte[sizeMB * 1024 * 1024];
+        random.nextBytes(data);
+        byte[][] contents = new byte[versions][];
+        long logical = 0;
+        long replicated = 0;
+        long elapsed = 0;
+        Set<String> previous = new HashSet<>();
+        for (int v = 0; v < versions; v++) {
+            if (v > 0)
+                data = edit(data, edits, random);
+            contents[v] = data;
+            logical += data.length;
+
+            long start = System.nanoTime();
+            ChunkStore.Writer writer = new ChunkStore.Writer();
+            for (int off = 0; off < data.length; off += WRITE_BUFFER)
+                writer.write(ByteBuffer.wrap(data, off, Math.min(WRITE_BUFFER, data.length - off)));
+            Path manifestFile = ChunkStore.newTemporaryPath();
+            Manifest manifest = writer.finish(manifestFile);
+            VersionIndex.add(name, manifestFile, manifest);
+            elapsed += System.nanoTime() - start;
+
+            // What sendReplica sends to a replica holding only the previous version
+            Set<String> sent = new HashSet<>();
+            for (int i = 0; i < manifest.hashes.size(); i++) {
+                String hash = manifest.hashes.get(i);
+                if (v > 0 && !previous.contains(hash) && sent.add(hash))
+                    replicated += manifest.lengths.get(i);
+            }
+            previous = new HashSet<>(manifest.hashes);
+        }
+
+        for (int v = 0; v < versions; v++) {
+            Path out = dir.resolve("reassembled");
+            try (FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ChunkStore.transferTo(FileHandler.getVersion(name, v), channel);
+            }
+            if (!Arrays.equals(Files.readAllBytes(out), contents[v]))
+                throw new IllegalStateException(String.format("Version %d did not reassemble", v));
+            Files.delete(out);
+        }
+
+        long stored = ChunkStore.diskUsage();
+        Manifest last = FileHandler.getVersion(name, versions - 1);
+        System.out.printf("%d versions of %d MB, %d edits of %d bytes per version%n", versions, sizeMB, edits,
+                EDIT_SIZE);
+        System.out.printf("whole-file copies     %8.1f MB%n", logical / 1e6);
+        System.out.printf("chunk store           %8.1f MB   (%d chunks per version, avg %d KB)%n", stored / 1e6,
+                last.hashes.size(), last.size / last.hashes.size() / 1024);
+        System.out.printf("re-replication        %8.1f MB whole files vs %.1f MB of new chunks%n",
+                (logical - contents[0].length) / 1e6, replicated / 1e6);
+        System.out.printf("chunking throughput   %8.0f MB/s%n", logical / 1e6 / (elapsed / 1e9));
+        System.out.printf("all versions reassembled byte for byte%n");
+
+        FileHandler.deleteFile(name);
+        System.out.printf("after delete          %8.1f MB%n", ChunkStore.diskUsage() / 1e6);
+    }
+
+    /*
+     * Overwrites, inserts or removes a few KB at random places
+     */
+    private static byte[] edit(byte[] data, int edits, Random random) {
+        for (int e = 0; e < edits; e++) {
+            int at = random.nextInt(data.length - EDIT_SIZE);
+            byte[] patch = new byte[EDIT_SIZE];
+            random.nextBytes(patch);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + EDIT_SIZE);
+            out.write(data, 0, at);
+            switch (e % 3) {
+            case 0: // overwrite
+                out.write(patch, 0, patch.length);
+                out.write(data, at + EDIT_SIZE, data.length - at - EDIT_SIZE);
+                break;
+            case 1: // insert
+                out.write(patch, 0, patch.length);
+                out.write(data, at, data.length - at);
+                break;
+            default: // remove
+                out.write(data, at + EDIT_SIZE, data.length - at - EDIT_SIZE);
+                break;
+            }
+            data = out.toByteArray();
+        }
+        return data;
+    }
+}
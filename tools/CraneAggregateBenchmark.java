@@ -0,0 +1,111 @@
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Word count over comma separated lines through a bolt's Topology: every
+ * word streamed back and counted by the client, against a count=0
+ * aggregation with and without tumbling and sliding windows. Reports
+ * tuples a second and the lines and bytes the bolt would send. Then the
+ * keyed state itself, Aggregate.State against a HashMap of boxed Longs,
+ * counting a field of each line.
+ *
+ * make && javac -cp . -d . tools/CraneAggregateBenchmark.java
+ * java CraneAggregateBenchmark [lines] [keys]
+ */
+public class CraneAggregateBenchmark {
+    static String[] words(String line) {
+        return line.split(",");
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        Map<String, Method> actions = new HashMap<>();
+        actions.put("words", CraneAggregateBenchmark.class.getDeclaredMethod("words", String.class));
+        String[] lines = new String[count];
+        for (int i = 0; i < count; i++)
+            lines[i] = String.format("w%d,Champaign,w%d,Urbana,w%d", i % keys, i * 7 % keys, i % 97);
+
+        System.out.printf("%d lines, %d words, %d keys, %d cores%n", count, count * 5, keys,
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-36s %12s %10s %12s%n", "topology", "lines/s", "lines out", "bytes out");
+        String[][] topologies = { { "words" }, { "words", "count=0" }, { "words", "count=0", "window=100" },
+                { "words", "count=0", "window=200,50" } };
+        // One run first so every shape is measured with a compiled pipeline
+        run(new String[] { "words", "count=0" }, actions, lines);
+        for (String[] topology : topologies) {
+            long start = System.nanoTime();
+            long[] out = run(topology, actions, lines);
+            long champaign = out[2];
+            if (topology.length == 1) {
+                // The client counts what was streamed back
+                Map<String, Long> counts = new HashMap<>();
+                for (String line : lines) {
+                    for (String word : words(line))
+                        counts.merge(word, 1L, Long::sum);
+                }
+                champaign = counts.get("Champaign");
+            }
+            double rate = lines.length * 1e9 / (System.nanoTime() - start);
+            if (champaign != lines.length)
+                throw new IllegalStateException(String.format("%s counted Champaign %d times, not %d",
+                        String.join(" ", topology), champaign, lines.length));
+            System.out.printf("%-36s %12.0f %10d %12d%n", String.join(" ", topology), rate, out[0], out[1]);
+        }
+
+        // Counting the first field of each line, the way a combiner keys on a field of its tuples
+        System.out.printf("%n%-36s %12s%n", "keyed state", "merges/s");
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            Aggregate.State state = new Aggregate.State();
+            LongBinaryOperator sum = Long::sum;
+            for (String line : lines)
+                state.merge(line, 0, line.indexOf(','), 1, sum);
+            double stateRate = count * 1e9 / (System.nanoTime() - start);
+            start = System.nanoTime();
+            Map<String, Long> boxed = new HashMap<>();
+            for (String line : lines)
+                boxed.merge(line.substring(0, line.indexOf(',')), 1L, Long::sum);
+            double boxedRate = count * 1e9 / (System.nanoTime() - start);
+            if (state.size() != boxed.size())
+                throw new IllegalStateException(String.format("%d keys against %d", state.size(), boxed.size()));
+            if (round == 2) {
+                System.out.printf("%-36s %12.0f%n", "Aggregate.State", stateRate);
+                System.out.printf("%-36s %12.0f%n", "HashMap<String, Long>", boxedRate);
+            }
+        }
+    }
+
+    /*
+     * Lines and bytes out, and the count of Champaign summed over every
+     * window it came out in, divided by how many windows each tuple is in
+     */
+    private static long[] run(String[] topology, Map<String, Method> actions, String[] lines) throws Exception {
+        long[] out = new long[3];
+        String window = null;
+        for (String operator : topology) {
+            if (operator.startsWith("window="))
+                window = operator;
+        }
+        long overlap = 1;
+        if (window != null && window.indexOf(',') > 0) {
+            String[] times = window.substring("window=".length()).split(",");
+            overlap = Long.parseLong(times[0]) / Long.parseLong(times[1]);
+        }
+        Topology job = new Topology(topology, actions, tuple -> {
+            out[0]++;
+            out[1] += tuple.getBytes(StandardCharsets.UTF_8).length + 1;
+            String[] fields = tuple.split(",");
+            if (fields.length > 1 && fields[fields.length - 2].equals("Champaign"))
+                out[2] += Long.parseLong(fields[fields.length - 1]);
+        });
+        for (String line : lines)
+            job.accept(line);
+        job.finish();
+        out[2] /= overlap;
+        return out;
+    }
+}
@@ -0,0 +1,66 @@
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tuples a second through a bolt's Topology with a CPU-heavy action at
+ * parallelism 1, 2, 4 and 8 and at the default of one executor per core,
+ * fed from one thread the way the bolt reads from the spout. Throughput
+ * should grow with executors up to the cores of the machine.
+ *
+ * make && javac -cp . -d . tools/CraneExecutorBenchmark.java
+ * java CraneExecutorBenchmark [tuples] [work per tuple]
+ */
+public class CraneExecutorBenchmark {
+    private static int work;
+
+    /*
+     * Rounds of string hashing per tuple, stands in for parsing and scoring
+     */
+    static String score(String line) {
+        int h = 0;
+        for (int i = 0; i < work; i++)
+            h = 31 * h + line.hashCode() + i;
+        return h % 7 == 0 ? line : line + ',' + h;
+    }
+
+    static String upper(String line) {
+        return line.toUpperCase();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        work = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Map<String, Method> actions = new HashMap<>();
+        actions.put("score", CraneExecutorBenchmark.class.getDeclaredMethod("score", String.class));
+        actions.put("upper", CraneExecutorBenchmark.class.getDeclaredMethod("upper", String.class));
+        String[] lines = new String[tuples];
+        for (int i = 0; i < tuples; i++)
+            lines[i] = String.format("%d,Champaign Station,%d,Urbana,%d", i, i * 7, i % 97);
+
+        System.out.printf("%d tuples, %d cores%n", tuples, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-16s %14s%n", "topology", "tuples/s");
+        String[][] topologies = { { "score:1", "upper" }, { "score:2", "upper" }, { "score:4", "upper" },
+                { "score:8", "upper" }, { "score", "upper" }, { "score:4", "upper:1" } };
+        // One run first so every shape is measured with a compiled pipeline
+        run(new String[] { "score", "upper" }, actions, lines);
+        for (String[] topology : topologies) {
+            double rate = run(topology, actions, lines);
+            System.out.printf("%-16s %14.0f%n", String.join(" ", topology), rate);
+        }
+    }
+
+    private static double run(String[] topology, Map<String, Method> actions, String[] lines) throws Exception {
+        long[] count = new long[1];
+        Topology job = new Topology(topology, actions, tuple -> count[0]++);
+        long start = System.nanoTime();
+        for (String line : lines)
+            job.accept(line);
+        job.finish();
+        double rate = lines.length * 1e9 / (System.nanoTime() - start);
+        if (count[0] != lines.length)
+            throw new IllegalStateException(String.format("%s: %d of %d tuples came out",
+                    String.join(" ", topology), count[0], lines.length));
+        return rate;
+    }
+}
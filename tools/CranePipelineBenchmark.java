@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tuples a second on one core through Crane topologies of 1, 3 and 10
+ * actions, the old per-tuple reflective Method.invoke of every action
+ * against the compiled Pipeline. Both run the same static actions over the
+ * same lines and must produce the same output. Runs once with actions that
+ * rewrite the line, where the actions' own work dominates, and once with
+ * actions that only check it, where dispatch does.
+ *
+ * make && javac -cp . -d . tools/CranePipelineBenchmark.java
+ * java CranePipelineBenchmark [tuples] [rounds]
+ */
+public class CranePipelineBenchmark {
+    private static final int[] STAGES = { 1, 3, 10 };
+    private static final String[] REWRITE = { "trim", "lower", "stripQuotes", "firstField", "upper" };
+    private static final String[] CHECK = { "nonBlank", "quoted", "hasComma", "shortLine", "nonBlank" };
+
+    static String trim(String line) {
+        return line.trim();
+    }
+
+    static String lower(String line) {
+        return line.toLowerCase();
+    }
+
+    static String upper(String line) {
+        return line.toUpperCase();
+    }
+
+    static String stripQuotes(String line) {
+        return line.indexOf('"') < 0 ? line : line.replace("\"", "");
+    }
+
+    static String firstField(String line) {
+        int comma = line.indexOf(',');
+        return comma < 0 ? line : line.substring(0, comma);
+    }
+
+    static String nonBlank(String line) {
+        return line.isEmpty() ? "" : line;
+    }
+
+    static String quoted(String line) {
+        return line.indexOf('"') == 1 ? line : "";
+    }
+
+    static String hasComma(String line) {
+        return line.indexOf(',') > 0 ? line : "";
+    }
+
+    static String shortLine(String line) {
+        return line.length() < 1000 ? line : "";
+    }
+
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String[] lines = new String[tuples];
+        for (int i = 0; i < tuples; i++)
+            lines[i] = String.format(" \"Row %d\",%d,Station-%d ", i, i * 7, i % 97);
+        System.out.printf("%d tuples, best of %d rounds, one thread%n", tuples, rounds);
+        run("rewriting actions", REWRITE, lines, rounds);
+        run("checking actions", CHECK, lines, rounds);
+    }
+
+    private static void run(String title, String[] cycle, String[] lines, int rounds) throws Exception {
+        int tuples = lines.length;
+        Map<String, Method> actions = new HashMap<>();
+        for (String name : cycle)
+            actions.put(name, CranePipelineBenchmark.class.getDeclaredMethod(name, String.class));
+        System.out.printf("%n%s%n%6s %16s %17s %8s%n", title, "stages", "invoke tuples/s", "compiled tuples/s",
+                "speedup");
+        for (int stages : STAGES) {
+            String[] topology = new String[stages];
+            for (int i = 0; i < stages; i++)
+                topology[i] = cycle[i % cycle.length];
+            long[] checksums = new long[2];
+            double invoke = 0;
+            double compiled = 0;
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                long sum = 0;
+                for (String line : lines) {
+                    for (String action : topology)
+                        line = (String) actions.get(action).invoke(null, line);
+                    if (!line.equals(""))
+                        sum += line.hashCode();
+                }
+                invoke = Math.max(invoke, tuples * 1e9 / (System.nanoTime() - start));
+                checksums[0] = sum;
+
+                long[] out = new long[1];
+                start = System.nanoTime();
+                Pipeline.Sink pipeline = Pipeline.compile(topology, actions, tuple -> {
+                    if (!tuple.equals(""))
+                        out[0] += tuple.hashCode();
+                });
+                for (String line : lines)
+                    pipeline.accept(line);
+                compiled = Math.max(compiled, tuples * 1e9 / (System.nanoTime() - start));
+                checksums[1] = out[0];
+            }
+            if (checksums[0] != checksums[1])
+                throw new IOException(String.format("%d stages: outputs differ", stages));
+            System.out.printf("%6d %16.0f %17.0f %7.2fx%n", stages, invoke, compiled, compiled / invoke);
+        }
+    }
+}
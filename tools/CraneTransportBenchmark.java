@@ -0,0 +1,118 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tuples a second from a spout to one bolt over loopback, the old
+ * writeBytes(line + "\n") and readLine transport against Tuples batches.
+ * Every tenth line has non-ASCII characters, and each run reports how many
+ * lines reached the bolt unchanged.
+ *
+ * make && javac -cp . -d . tools/CraneTransportBenchmark.java
+ * java CraneTransportBenchmark [tuples] [rounds]
+ */
+public class CraneTransportBenchmark {
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        String[] lines = new String[tuples];
+        long bytes = 0;
+        for (int i = 0; i < tuples; i++) {
+            lines[i] = i % 10 == 0 ? String.format("%d,Z\u00fcrich Stra\u00dfe,%d,\u6771\u4eac,%d", i, i * 7, i % 97)
+                    : String.format("%d,Champaign Station,%d,Urbana,%d", i, i * 7, i % 97);
+            bytes += lines[i].getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        System.out.printf("%d tuples, %d MB of lines, %d rounds%n", tuples, bytes >> 20, rounds);
+        System.out.printf("%-8s %14s %10s %12s%n", "format", "tuples/s", "MB/s", "unchanged");
+
+        for (int round = 0; round < rounds; round++) {
+            run("lines", lines, bytes, (out, expected) -> {
+                try (ServerSocket server = new ServerSocket(0)) {
+                    Thread spout = spout(() -> {
+                        try (Socket socket = server.accept()) {
+                            DataOutputStream writer = new DataOutputStream(
+                                    new BufferedOutputStream(socket.getOutputStream()));
+                            for (String line : out)
+                                writer.writeBytes(line + "\n");
+                            writer.flush();
+                        }
+                    });
+                    int unchanged = 0;
+                    try (Socket socket = new Socket("127.0.0.1", server.getLocalPort())) {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                        String line;
+                        int i = 0;
+                        while ((line = reader.readLine()) != null) {
+                            if (line.equals(expected[i++]))
+                                unchanged++;
+                        }
+                    }
+                    join(spout);
+                    return unchanged;
+                }
+            });
+            run("batched", lines, bytes, (out, expected) -> {
+                try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(0))) {
+                    Thread spout = spout(() -> {
+                        try (SocketChannel socket = server.accept(); Tuples.Writer writer = new Tuples.Writer(socket)) {
+                            for (String line : out)
+                                writer.write(line);
+                        }
+                    });
+                    int unchanged = 0;
+                    try (SocketChannel socket = SocketChannel.open(server.getLocalAddress());
+                            Tuples.Reader reader = new Tuples.Reader(socket)) {
+                        String line;
+                        int i = 0;
+                        while ((line = reader.read()) != null) {
+                            if (line.equals(expected[i++]))
+                                unchanged++;
+                        }
+                    }
+                    join(spout);
+                    return unchanged;
+                }
+            });
+        }
+    }
+
+    interface Transfer {
+        int run(String[] out, String[] expected) throws IOException;
+    }
+
+    interface Task {
+        void run() throws IOException;
+    }
+
+    private static void run(String format, String[] lines, long bytes, Transfer transfer) throws IOException {
+        long start = System.nanoTime();
+        int unchanged = transfer.run(lines, lines);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-8s %14.0f %10.1f %11.1f%%%n", format, lines.length / seconds, bytes / seconds / 1e6,
+                100.0 * unchanged / lines.length);
+    }
+
+    private static Thread spout(Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void join(Thread thread) throws IOException {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}
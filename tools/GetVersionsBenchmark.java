@@ -0,0 +1,97 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * get-versions of the newest versions of a large file over loopback: the
+ * old handler, which concatenated the versions into a temp file with
+ * delimiters and then sent that, vs FileHandler.sendVersions streaming them
+ * from the chunks behind a header. Reports time and the bytes each one wrote
+ * to disk on the server.
+ *
+ * make && javac -cp . -d . tools/GetVersionsBenchmark.java
+ * java GetVersionsBenchmark [size in MB] [versions] [rounds]
+ */
+public class GetVersionsBenchmark {
+    private static final int PORT = 65101;
+    private static final String DELIMITER = "\n--NEW FILE--\n";
+
+    interface Handler {
+        void serve(Socket socket) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int versions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        Path dir = Files.createTempDirectory("versions-bench");
+        System.setProperty(FileHandler.USER_DIR, dir.toString());
+        String name = "bench-file";
+        Random random = new Random(42);
+        byte[] data = new byte[sizeMB * 1024 * 1024];
+        for (int v = 0; v < versions; v++) {
+            random.nextBytes(data);
+            ChunkStore.Writer writer = new ChunkStore.Writer();
+            writer.write(ByteBuffer.wrap(data));
+            Path manifestFile = ChunkStore.newTemporaryPath();
+            VersionIndex.add(name, manifestFile, writer.finish(manifestFile));
+        }
+        Path received = Files.createDirectories(dir.resolve("received"));
+        long total = (long) versions * data.length;
+
+        System.out.printf("get-versions of %d versions of %d MB over loopback%n", versions, sizeMB);
+        for (int r = 0; r <= rounds; r++) {
+            long concatenated = run(socket -> {
+                // What the handler did before: copy every version into a temp file, then send it
+                Path tmp = Files.createTempFile(dir, null, null);
+                try (FileOutputStream out = new FileOutputStream(tmp.toFile(), true)) {
+                    for (int v = 0; v < versions; v++) {
+                        ChunkStore.transferTo(FileHandler.getVersion(name, v), out.getChannel());
+                        out.write(DELIMITER.getBytes());
+                    }
+                }
+                FileHandler.sendFile(tmp.toFile(), socket);
+                Files.delete(tmp);
+            }, socket -> {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                in.readNBytes(Math.toIntExact(Math.min(Integer.MAX_VALUE, in.readLong())));
+            });
+            long streamed = run(socket -> FileHandler.sendVersions(name, versions, socket,
+                    new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))), socket -> {
+                List<Path> files = FileHandler.receiveVersions(name, socket, received);
+                for (Path file : files)
+                    Files.delete(file);
+            });
+            // The first round only warms up the JIT and page cache
+            if (r > 0)
+                System.out.printf("%d: temp file %7.0f ms (%d MB written on the server)   streamed %7.0f ms (0 MB)%n",
+                        r, concatenated / 1e6, total / 1000000, streamed / 1e6);
+        }
+        FileHandler.deleteFile(name);
+    }
+
+    private static long run(Handler server, Handler client) throws Exception {
+        try (ServerSocket serverSocket = FileHandler.openServerSocket(PORT)) {
+            Thread sender = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    server.serve(socket);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            sender.start();
+            long start = System.nanoTime();
+            try (Socket socket = FileHandler.openSocket("localhost", PORT)) {
+                client.serve(socket);
+            }
+            long elapsed = System.nanoTime() - start;
+            sender.join();
+            return elapsed;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Time to first result and total time of a grep over a large server log,
+ * forking grep like the old logGrep did vs searching in process with
+ * LogIndex. The log is written through AsyncLogger so it gets indexed the
+ * same way the server's does.
+ *
+ * make && javac -cp . -d . tools/LogSearchBenchmark.java
+ * java LogSearchBenchmark [log size in MB]
+ */
+public class LogSearchBenchmark {
+    // One line in RARE_EVERY mentions the rare pattern
+    private static final int RARE_EVERY = 10000;
+
+    interface Search {
+        long run(OutputStream out) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        Path dir = Files.createTempDirectory("log-search-bench");
+        Path file = dir.resolve("bench.log");
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        AsyncLogger log = new AsyncLogger();
+        log.setFile(file.toString());
+        long target = megabytes << 20;
+        long bytes = 0;
+        long lines = 0;
+        String middle = null;
+        while (bytes < target) {
+            String msg = lines % RARE_EVERY == 0
+                    ? String.format("Re-replicating file-%d to 10.0.0.%d failed: disk full", lines, lines % 250)
+                    : String.format("Master-thread-filename: file-%d saved on replica 10.0.0.%d", lines, lines % 250);
+            log.log(AsyncLogger.Level.INFO, msg);
+            bytes += msg.length() + 26;
+            if (middle == null && bytes >= target / 2)
+                middle = Server.getCurrentDateAsString();
+            lines++;
+        }
+        // Wait for the writer to drain
+        long size = -1;
+        while (size != Files.size(file)) {
+            size = Files.size(file);
+            Thread.sleep(500);
+        }
+        LogIndex index = log.getIndex();
+        stdout.printf("%d MB log, %d lines, %d index checkpoints%n", size >> 20, lines, index.getCheckpoints());
+
+        // Drop the page cache effect of writing the log from the first measurement
+        measure(stdout, "fork grep (warmup)", out -> forkGrep("disk full", file, out));
+        measure(stdout, "fork grep", out -> forkGrep("disk full", file, out));
+        measure(stdout, "index literal", out -> index.search(LogQuery.parse("disk full"), out));
+        measure(stdout, "index regex", out -> index.search(LogQuery.parse("file-[0-9]+0000 .*disk"), out));
+        measure(stdout, "index limit 10", out -> index.search(LogQuery.parse("-limit 10 disk full"), out));
+        String from = middle;
+        measure(stdout, "index from middle, limit 10",
+                out -> index.search(LogQuery.parse(String.format("-from %s -limit 10 disk full", from)), out));
+        System.exit(0);
+    }
+
+    private static long forkGrep(String pattern, Path file, OutputStream out) throws IOException {
+        String[] cmd = { "/bin/sh", "-c", String.format("grep '%s' %s", pattern, file) };
+        Process proc = Runtime.getRuntime().exec(cmd);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+        long count = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            out.write(line.getBytes());
+            out.write('\n');
+            out.flush();
+            count++;
+        }
+        return count;
+    }
+
+    private static void measure(PrintStream stdout, String name, Search search) throws Exception {
+        long start = System.nanoTime();
+        long[] first = { -1 };
+        OutputStream out = new OutputStream() {
+            public void write(int b) {
+                if (first[0] == -1)
+                    first[0] = System.nanoTime();
+            }
+
+            public void write(byte[] b, int off, int len) {
+                write(0);
+            }
+        };
+        long matches = search.run(out);
+        long end = System.nanoTime();
+        stdout.printf("%-28s %7d matches   first %9.2f ms   total %9.2f ms%n", name, matches,
+                first[0] == -1 ? 0 : (first[0] - start) / 1e6, (end - start) / 1e6);
+    }
+}
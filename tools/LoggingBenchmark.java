@@ -0,0 +1,88 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Latency of the log calls a put makes, with the old synchronous
+ * writeToLog (format, write and flush per message) vs AsyncLogger.
+ * Reports p50/p99 per simulated put across several request threads.
+ *
+ * make && javac -cp . -d . tools/LoggingBenchmark.java
+ * java LoggingBenchmark [threads] [puts per thread]
+ */
+public class LoggingBenchmark {
+    // Log lines the put path used to emit per replica
+    private static final int LINES_PER_PUT = 7;
+
+    interface Log {
+        void write(String msg) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int puts = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        Path dir = Files.createTempDirectory("log-bench");
+        PrintStream stdout = System.out;
+        // Both loggers also echo to stdout, which would dominate the measurement
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        FileWriter syncFile = new FileWriter(dir.resolve("sync.log").toFile());
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyy/MM/dd-HH:mm:ss.SSS");
+        long[] sync = run(threads, puts, msg -> {
+            String line = String.format("%s: %s\n", formatter.format(new Date()), msg);
+            System.out.print(line);
+            syncFile.write(line);
+            syncFile.flush();
+        });
+
+        AsyncLogger async = new AsyncLogger();
+        async.setFile(dir.resolve("async.log").toString());
+        long[] asynchronous = run(threads, puts, msg -> async.log(AsyncLogger.Level.INFO, msg));
+
+        // The async writer is still draining into the muted stdout, so report on the original one
+        stdout.printf("%d threads x %d puts, %d log lines per put%n", threads, puts, LINES_PER_PUT);
+        report(stdout, "synchronous", sync);
+        report(stdout, "async", asynchronous);
+        stdout.printf("async ring stalls: %d%n", async.getStalls());
+    }
+
+    private static long[] run(int threads, int puts, Log log) throws InterruptedException {
+        long[] latencies = new long[threads * puts];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * puts;
+            workers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < puts; i++) {
+                        long start = System.nanoTime();
+                        for (int line = 0; line < LINES_PER_PUT; line++)
+                            log.write(String.format("Master-thread-filename: file-%d line %d", i, line));
+                        latencies[offset + i] = System.nanoTime() - start;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static void report(PrintStream out, String name, long[] sorted) {
+        out.printf("%-12s p50 %8.1f us   p99 %8.1f us   max %9.1f us%n", name,
+                sorted[sorted.length / 2] / 1e3, sorted[(int) (sorted.length * 0.99)] / 1e3,
+                sorted[sorted.length - 1] / 1e3);
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.*;
+
+/**
+ * Simulates SDFS file placement on the consistent hash ring against the old
+ * (hashCode % 10) % N placement. For each cluster size it reports the load
+ * balance of the replicas and the bytes moved by a single join and leave.
+ *
+ * make && javac -cp . -d . tools/PlacementSimulator.java
+ * java PlacementSimulator [files] [virtual nodes]
+ */
+public class PlacementSimulator {
+    private static final int[] CLUSTER_SIZES = { 10, 50, 100, 500, 1000 };
+
+    interface Placement {
+        List<String> replicas(String file);
+    }
+
+    public static void main(String[] args) {
+        int numFiles = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int virtualNodes = args.length > 1 ? Integer.parseInt(args[1]) : HashRing.VIRTUAL_NODES;
+
+        // File sizes between 1 KB and 64 MB so "bytes moved" is not just a file count
+        Random random = new Random(428);
+        String[] files = new String[numFiles];
+        long[] sizes = new long[numFiles];
+        long totalBytes = 0;
+        for (int i = 0; i < numFiles; i++) {
+            files[i] = String.format("file-%d.txt", i);
+            sizes[i] = 1024 + (long) (random.nextDouble() * 64 * 1024 * 1024);
+            totalBytes += sizes[i];
+        }
+
+        System.out.printf("%d files, %.1f GB, %d replicas, %d virtual nodes%n", numFiles, totalBytes / 1e9,
+                FileHandler.NUM_REPLICAS, virtualNodes);
+        System.out.printf("%-8s %6s %10s %10s %12s %12s%n", "scheme", "nodes", "max/mean", "stdev/mean",
+                "join moved", "leave moved");
+        for (int n : CLUSTER_SIZES) {
+            List<String> members = members(n);
+            List<String> joined = members(n + 1);
+            List<String> left = new ArrayList<>(members);
+            left.remove(n / 2);
+
+            report("ring", n, files, sizes, totalBytes,
+                    ring(members, virtualNodes), ring(joined, virtualNodes), ring(left, virtualNodes));
+            report("modulo", n, files, sizes, totalBytes, modulo(members), modulo(joined), modulo(left));
+        }
+    }
+
+    private static List<String> members(int n) {
+        ArrayList<String> members = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            members.add(String.format("10.0.%d.%d", i / 250, i % 250 + 1));
+        Collections.sort(members);
+        return members;
+    }
+
+    private static Placement ring(List<String> members, int virtualNodes) {
+        HashRing ring = new HashRing(members, virtualNodes);
+        return file -> ring.getReplicas(file, FileHandler.NUM_REPLICAS);
+    }
+
+    // The placement FileHandler.getNodeFromFile used before the hash ring
+    private static Placement modulo(List<String> members) {
+        return file -> {
+            ArrayList<String> replicas = new ArrayList<>();
+            int lower = Math.abs((file.hashCode() % 10) % members.size());
+            for (int i = 0; i < Math.min(FileHandler.NUM_REPLICAS, members.size()); i++)
+                replicas.add(members.get((lower + i) % members.size()));
+            return replicas;
+        };
+    }
+
+    private static void report(String scheme, int n, String[] files, long[] sizes, long totalBytes,
+            Placement before, Placement joined, Placement left) {
+        HashMap<String, Long> load = new HashMap<>();
+        long joinMoved = 0;
+        long leaveMoved = 0;
+        for (int i = 0; i < files.length; i++) {
+            List<String> replicas = before.replicas(files[i]);
+            for (String replica : replicas)
+                load.merge(replica, sizes[i], Long::sum);
+            joinMoved += sizes[i] * newReplicas(replicas, joined.replicas(files[i]));
+            leaveMoved += sizes[i] * newReplicas(replicas, left.replicas(files[i]));
+        }
+
+        double mean = (double) totalBytes * Math.min(FileHandler.NUM_REPLICAS, n) / n;
+        double max = 0;
+        double variance = 0;
+        for (long bytes : load.values()) {
+            max = Math.max(max, bytes);
+            variance += (bytes - mean) * (bytes - mean);
+        }
+        // Members holding nothing still count towards the imbalance
+        variance += (n - load.size()) * mean * mean;
+        double stored = (double) totalBytes * Math.min(FileHandler.NUM_REPLICAS, n);
+        System.out.printf("%-8s %6d %10.2f %10.2f %11.2f%% %11.2f%%%n", scheme, n, max / mean,
+                Math.sqrt(variance / n) / mean, 100.0 * joinMoved / stored, 100.0 * leaveMoved / stored);
+    }
+
+    // Replicas that have to receive a copy of the file after the change
+    private static int newReplicas(List<String> before, List<String> after) {
+        int count = 0;
+        for (String replica : after)
+            if (!before.contains(replica))
+                count++;
+        return count;
+    }
+}
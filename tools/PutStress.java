@@ -0,0 +1,148 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts many puts of different files at the same moment against a running
+ * cluster, then checks every file reached the write quorum and can be found
+ * on its replicas. Start a local cluster first with tools/local-cluster.sh.
+ *
+ * make && javac -cp . -d . tools/PutStress.java
+ * java PutStress [puts] [size in KB] [server,server,...]
+ */
+public class PutStress {
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BACKOFF_MS = 50;
+    private static final AtomicInteger retries = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        int puts = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int sizeKB = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        List<String> servers = Arrays.asList(
+                (args.length > 2 ? args[2] : "127.0.0.1,127.0.0.2,127.0.0.3,127.0.0.4").split(","));
+        String run = Long.toString(System.currentTimeMillis());
+
+        Path dir = Files.createTempDirectory("put-stress");
+        Random random = new Random();
+        File[] files = new File[puts];
+        for (int i = 0; i < puts; i++) {
+            byte[] data = new byte[sizeKB * 1024];
+            random.nextBytes(data);
+            files[i] = dir.resolve(String.format("stress-%s-%d", run, i)).toFile();
+            Files.write(files[i].toPath(), data);
+        }
+
+        // Every put waits here so they all hit the cluster together
+        CountDownLatch go = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(puts);
+        List<Future<String>> replies = new ArrayList<>();
+        long[] latencies = new long[puts];
+        for (int i = 0; i < puts; i++) {
+            final int idx = i;
+            replies.add(pool.submit(() -> {
+                go.await();
+                long start = System.nanoTime();
+                String reply = put(servers, files[idx]);
+                latencies[idx] = System.nanoTime() - start;
+                return reply;
+            }));
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        int acked = 0;
+        for (int i = 0; i < puts; i++) {
+            String reply;
+            try {
+                reply = replies.get(i).get();
+            } catch (ExecutionException e) {
+                reply = e.getCause().toString();
+            }
+            if (reply.startsWith("File saved ACK"))
+                acked++;
+            else
+                System.out.printf("%s: %s%n", files[i].getName(), reply);
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        int found = 0;
+        for (File file : files) {
+            if (countReplicas(servers, file.getName()) >= Math.min(3, servers.size()))
+                found++;
+            else
+                System.out.printf("%s: missing replicas%n", file.getName());
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%d concurrent puts of %d KB to %d servers in %.0f ms%n", puts, sizeKB, servers.size(),
+                elapsed / 1e6);
+        System.out.printf("acked %d/%d, on a write quorum of replicas %d/%d, %d retries of busy puts%n", acked, puts,
+                found, puts, retries.get());
+        System.out.printf("put latency p50 %.1f ms   p99 %.1f ms   max %.1f ms%n", latencies[puts / 2] / 1e6,
+                latencies[(int) (puts * 0.99)] / 1e6, latencies[puts - 1] / 1e6);
+        System.exit(acked == puts && found == puts ? 0 : 1);
+    }
+
+    /*
+     * Puts file, retrying with backoff while its head turns puts away as busy
+     */
+    private static String put(List<String> servers, File file) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            String reply;
+            try {
+                reply = putOnce(servers, file);
+            } catch (IOException e) {
+                // A busy head closes the connection without reading the file
+                reply = e.toString();
+            }
+            if (reply.startsWith("File saved ACK") || attempt == MAX_ATTEMPTS - 1)
+                return reply;
+            retries.incrementAndGet();
+            Thread.sleep(RETRY_BACKOFF_MS << attempt);
+        }
+    }
+
+    private static String putOnce(List<String> servers, File file) throws IOException {
+        List<String> chain = query(servers.get(0), String.format("replicas %s", file.getName()));
+        if (chain.isEmpty())
+            return "no replicas";
+        try (Socket socket = FileHandler.openSocket(chain.get(0), Server.SERVER_PORT)) {
+            new DataOutputStream(socket.getOutputStream())
+                    .writeUTF(String.format("put %s %s\n", file.getName(), file.getName()));
+            FileHandler.sendFile(file, socket);
+            return String.join("\n", readLines(socket));
+        }
+    }
+
+    private static int countReplicas(List<String> servers, String name) throws IOException {
+        int count = 0;
+        for (String server : servers) {
+            List<String> reply = query(server, String.format("ls %s", name));
+            if (!reply.isEmpty() && reply.get(0).startsWith("+++++"))
+                count++;
+        }
+        return count;
+    }
+
+    private static List<String> query(String server, String cmd) throws IOException {
+        try (Socket socket = FileHandler.openSocket(server, Server.SERVER_PORT)) {
+            new DataOutputStream(socket.getOutputStream()).writeUTF(String.format("%s\n", cmd));
+            return readLines(socket);
+        }
+    }
+
+    private static List<String> readLines(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null)
+            lines.add(line.trim());
+        return lines;
+    }
+}
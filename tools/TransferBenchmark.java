@@ -0,0 +1,76 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Loopback throughput of FileHandler.sendFile/receiveFile through plain
+ * java.net sockets (heap buffer copies) and through NIO channel sockets
+ * (transferTo/transferFrom).
+ *
+ * make && javac -cp . tools/TransferBenchmark.java -d .
+ * java TransferBenchmark [megabytes] [iterations]
+ */
+public class TransferBenchmark {
+    private static final int PORT = 65100;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        // FileHandler resolves the sdfs directory from user.dir
+        Path workDir = Files.createTempDirectory("sdfs-bench");
+        System.setProperty(FileHandler.USER_DIR, workDir.toString());
+        File source = workDir.resolve("source").toFile();
+        writeRandomFile(source, megabytes);
+
+        System.out.printf("Transferring %d MB over loopback, %d iterations%n", megabytes, iterations);
+        for (int i = 0; i <= iterations; i++) {
+            double stream = run(source, false);
+            double channel = run(source, true);
+            // The first round only warms up the JIT and page cache
+            if (i > 0)
+                System.out.printf("%d: stream %.1f MB/s, zero-copy %.1f MB/s%n", i, stream, channel);
+            FileHandler.deleteFile("stream");
+            FileHandler.deleteFile("channel");
+        }
+        source.delete();
+        Files.deleteIfExists(workDir.resolve(FileHandler.SDFS_DIR));
+        Files.deleteIfExists(workDir);
+    }
+
+    private static double run(File source, boolean zeroCopy) throws Exception {
+        String name = zeroCopy ? "channel" : "stream";
+        try (ServerSocket serverSocket = zeroCopy ? FileHandler.openServerSocket(PORT) : new ServerSocket(PORT)) {
+            Thread receiver = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    FileHandler.receiveFile(name, socket);
+                    new DataOutputStream(socket.getOutputStream()).writeBoolean(true);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            receiver.start();
+
+            long start = System.nanoTime();
+            try (Socket socket = zeroCopy ? FileHandler.openSocket("localhost", PORT) : new Socket("localhost", PORT)) {
+                FileHandler.sendFile(source, socket);
+                new DataInputStream(socket.getInputStream()).readBoolean();
+            }
+            long elapsed = System.nanoTime() - start;
+            receiver.join();
+            return (source.length() / 1e6) / (elapsed / 1e9);
+        }
+    }
+
+    private static void writeRandomFile(File file, int megabytes) throws IOException {
+        byte[] block = new byte[1 << 20];
+        new Random(42).nextBytes(block);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < megabytes; i++)
+                out.write(block);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Small request/reply signals between two servers over loopback: a fresh TCP
+ * connection per signal, like the old replica signalling and re-replication
+ * offers, vs calls over one multiplexed Transport connection.
+ * Reports throughput and p50/p99 latency.
+ *
+ * make && javac -cp . -d . tools/TransportBenchmark.java
+ * java TransportBenchmark [signals] [concurrent callers]
+ */
+public class TransportBenchmark {
+    private static final int SIGNAL_PORT = 5018;
+
+    interface Signal {
+        void send() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int signals = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int callers = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ServerSocket signalSocket = FileHandler.openServerSocket(SIGNAL_PORT);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try (Socket socket = signalSocket.accept()) {
+                    new DataInputStream(socket.getInputStream()).readUTF();
+                    new DataOutputStream(socket.getOutputStream()).writeBoolean(true);
+                } catch (IOException e) {
+                    // Next connection
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        Transport.listen();
+        Transport.register("signal", (peer, a, body) -> "true");
+
+        run(stdout, "socket per signal", signals, callers, () -> {
+            try (Socket socket = FileHandler.openSocket("127.0.0.1", SIGNAL_PORT)) {
+                new DataOutputStream(socket.getOutputStream()).writeUTF("signal");
+                new DataInputStream(socket.getInputStream()).readBoolean();
+            }
+        });
+        run(stdout, "transport", signals, callers, () -> Transport.call("127.0.0.1", "signal"));
+        System.exit(0);
+    }
+
+    private static void run(PrintStream stdout, String name, int signals, int callers, Signal signal) throws Exception {
+        // Warm up both paths before measuring
+        for (int i = 0; i < 1000; i++)
+            signal.send();
+        long[] latencies = new long[signals];
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < signals; i++) {
+            final int idx = i;
+            futures.add(pool.submit(() -> {
+                long begin = System.nanoTime();
+                signal.send();
+                latencies[idx] = System.nanoTime() - begin;
+                return null;
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        Arrays.sort(latencies);
+        stdout.printf("%-18s %8.0f signals/s   p50 %7.1f us   p99 %7.1f us%n", name, signals / (elapsed / 1e9),
+                latencies[signals / 2] / 1e3, latencies[(int) (signals * 0.99)] / 1e3);
+    }
+}
@@ -0,0 +1,64 @@
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Cost of looking up the versions a get-versions of every version needs, for
+ * a file with many versions: the old listFiles and sort by lastModified per
+ * version vs the VersionIndex.
+ *
+ * make && javac -cp . -d . tools/VersionIndexBenchmark.java
+ * java VersionIndexBenchmark [versions] [rounds]
+ */
+public class VersionIndexBenchmark {
+    public static void main(String[] args) throws Exception {
+        int versions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        Path dir = Files.createTempDirectory("version-bench");
+        System.setProperty(FileHandler.USER_DIR, dir.toString());
+        String name = "bench-file";
+
+        // The old layout, one file per version named by time
+        Path legacy = dir.resolve("legacy");
+        Files.createDirectories(legacy);
+        for (int v = 0; v < versions; v++) {
+            Path path = legacy.resolve(String.format("version-%d", v));
+            Files.write(path, new byte[]{(byte) v});
+            path.toFile().setLastModified(1_000_000_000_000L + v * 1000L);
+        }
+        for (int v = 0; v < versions; v++) {
+            ChunkStore.Writer writer = new ChunkStore.Writer();
+            writer.write(ByteBuffer.wrap(Integer.toString(v).getBytes()));
+            Path manifestFile = ChunkStore.newTemporaryPath();
+            VersionIndex.add(name, manifestFile, writer.finish(manifestFile));
+        }
+
+        long listed = Long.MAX_VALUE;
+        long indexed = Long.MAX_VALUE;
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            for (int v = 0; v < versions; v++) {
+                File[] files = legacy.toFile().listFiles();
+                Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+                if (files[v] == null)
+                    throw new IllegalStateException();
+            }
+            listed = Math.min(listed, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int v = 0; v < FileHandler.numVersions(name); v++) {
+                if (FileHandler.getVersion(name, v).size == 0)
+                    throw new IllegalStateException();
+            }
+            indexed = Math.min(indexed, System.nanoTime() - start);
+        }
+        System.out.printf("get-versions of all %d versions, best of %d rounds%n", versions, rounds);
+        System.out.printf("listFiles + sort per version   %9.2f ms%n", listed / 1e6);
+        System.out.printf("version index                  %9.2f ms   (includes reading each manifest)%n",
+                indexed / 1e6);
+        FileHandler.deleteFile(name);
+    }
+}
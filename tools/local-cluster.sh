@@ -0,0 +1,14 @@
+#!/usr/bin/env bash
+# Starts N servers on this host, on 127.0.0.1 .. 127.0.0.N, each in its own
+# directory under ./cluster. The first one is the introducer.
+# usage: tools/local-cluster.sh [N]    stop with: pkill -f sdfs.ip=127.0.0.
+N=${1:-4}
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+for i in $(seq 1 "$N"); do
+    mkdir -p "$ROOT/cluster/node$i"
+    (cd "$ROOT/cluster/node$i" && \
+        java -cp "$ROOT" -Dsdfs.ip=127.0.0.$i -Dsdfs.introducer=127.0.0.1 Server > server.out 2>&1 &)
+    # Let the introducer come up before the others join
+    sleep 1
+done
+echo "Started $N servers on 127.0.0.1 - 127.0.0.$N"